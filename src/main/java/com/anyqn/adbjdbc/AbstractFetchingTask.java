@@ -16,17 +16,15 @@
 package com.anyqn.adbjdbc;
 
 import java.util.Map;
-import java.util.TimerTask;
 
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import se.vidstige.jadb.JadbConnection;
 
 @Slf4j
-public abstract class AbstractFetchingTask extends TimerTask {
+public abstract class AbstractFetchingTask {
     @Getter
-    private final JadbConnection jadb;
+    private final DeviceRegistry deviceRegistry;
     @Getter
     private final String deviceIdentifier;
     @Getter
@@ -35,12 +33,18 @@ public abstract class AbstractFetchingTask extends TimerTask {
     private final @NonNull String packageName;
 
     public AbstractFetchingTask(@NonNull final String deviceIdentifier, @NonNull final String packageName,
-            @NonNull final Map<String, String> params, @NonNull final JadbConnection jadb) {
+            @NonNull final Map<String, String> params, @NonNull final DeviceRegistry deviceRegistry) {
         log.debug("Called");
         this.packageName = packageName;
         this.params = params;
-        this.jadb = jadb;
+        this.deviceRegistry = deviceRegistry;
         this.deviceIdentifier = deviceIdentifier;
     }
 
+    /**
+     * Fetch data from device once.
+     *
+     * @return is fetched data changed
+     */
+    public abstract FetchResult fetch() throws Exception;
 }
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs fetching task with adaptive delay: fast polling ({@code minPeriod})
+ * right after detected change, exponential backoff up to {@code maxPeriod}
+ * while data is not changed or device is absent, jittered exponential backoff
+ * after failures. Failed run never cancels next runs.
+ */
+@Slf4j
+public class AdaptiveScheduler {
+    private static final long DEFAULT_MIN_PERIOD = 1000;
+    private static final long DEFAULT_MAX_PERIOD = 60000;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final AbstractFetchingTask task;
+    private final long minPeriod;
+    private final long maxPeriod;
+    private long delay;
+    private int failures;
+    private ScheduledFuture<?> next;
+
+    public AdaptiveScheduler(@NonNull final AbstractFetchingTask task, @NonNull final Map<String, String> params) {
+        log.debug("Called");
+        this.task = task;
+        final String period = params.get("period");
+        minPeriod = Long.parseLong(
+                params.getOrDefault("minPeriod", null == period ? String.valueOf(DEFAULT_MIN_PERIOD) : period));
+        maxPeriod = Math.max(minPeriod, Long.parseLong(
+                params.getOrDefault("maxPeriod", null == period ? String.valueOf(DEFAULT_MAX_PERIOD) : period)));
+        delay = minPeriod;
+    }
+
+    private long backoff() {
+        final long limit = Math.min(maxPeriod, minPeriod << Math.min(failures, MAX_BACKOFF_SHIFT));
+        return limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1);
+    }
+
+    private long nextDelay(final FetchResult result) {
+        switch (result) {
+        case CHANGED:
+            return minPeriod;
+        case DEVICE_ABSENT:
+            return maxPeriod;
+        default:
+            return Math.min(maxPeriod, delay * 2);
+        }
+    }
+
+    private void runTask() {
+        log.debug("Called");
+        try {
+            final FetchResult result = task.fetch();
+            failures = 0;
+            delay = nextDelay(result);
+            log.debug("Fetch result {}, next run after {} ms", result, delay);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (final Exception e) {
+            failures++;
+            delay = backoff();
+            log.warn("Fetch failed {} times, retry after {} ms with error [{}]", failures, delay, e);
+        }
+        schedule(delay);
+    }
+
+    private synchronized void schedule(final long taskDelay) {
+        if (!executor.isShutdown()) {
+            next = executor.schedule(this::runTask, taskDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run action once on scheduler thread, actions and task runs do not
+     * overlap.
+     */
+    public void execute(@NonNull final Runnable action) {
+        log.debug("Called");
+        executor.execute(action);
+    }
+
+    public void start(final long initialDelay) {
+        log.debug("Called");
+        schedule(initialDelay);
+    }
+
+    public void stop() {
+        log.debug("Called");
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run task now if it is waiting for next run, e.g. after device is
+     * attached. Task in progress is not affected.
+     */
+    public synchronized void wakeUp() {
+        log.debug("Called");
+        if (null != next && next.cancel(false)) {
+            delay = minPeriod;
+            schedule(0);
+        }
+    }
+}
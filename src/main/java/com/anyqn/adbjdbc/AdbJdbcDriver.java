@@ -25,6 +25,7 @@ import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
@@ -36,6 +37,9 @@ import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 
 import com.anyqn.adbjdbc.data.AdbDataConnection;
+import com.anyqn.adbjdbc.data.AttachedDatabases;
+import com.anyqn.adbjdbc.data.FetchPipelineRegistry;
+import com.anyqn.adbjdbc.data.RemoteDataConnection;
 import com.anyqn.adbjdbc.meta.AdbMetadataConnection;
 
 import lombok.extern.slf4j.Slf4j;
@@ -46,6 +50,7 @@ public class AdbJdbcDriver implements Driver {
     private static final int DB_NAME_GROUP = 2;
     private static final int PACKAGE_NAME_GROUP = 1;
     private static final String ADB = "adb";
+    private static final FetchPipelineRegistry PIPELINES = new FetchPipelineRegistry();
     private static final Driver INSTANCE = new AdbJdbcDriver();
     private static boolean registered;
 
@@ -70,6 +75,7 @@ public class AdbJdbcDriver implements Driver {
     private final Pattern pathPatternWithDb = Pattern.compile("^/(.*?)(/.*)?$");
 
     private JadbConnection jadb;
+    private DeviceRegistry deviceRegistry;
 
     public AdbJdbcDriver() {
         log.debug("Called");
@@ -113,9 +119,34 @@ public class AdbJdbcDriver implements Driver {
                 log.debug("Try to start with package name {} and db name {}", packageName, dbName);
 
                 if (null == dbName) {
-                    return new AdbMetadataConnection(deviceName, packageName, params, jadb);
+                    return new AdbMetadataConnection(deviceName, packageName, params, deviceRegistry);
+                } else if ("remote".equals(params.get("execution"))) {
+                    if ("*".equals(deviceName) || params.containsKey("devices")) {
+                        throw new IllegalArgumentException("Remote execution is supported only on one device");
+                    }
+                    final List<String> dbNames = getDbNames(deviceName, packageName, dbName, params);
+                    if (dbNames.size() != 1) {
+                        throw new IllegalArgumentException("Remote execution is supported only for one db");
+                    }
+                    return new RemoteDataConnection(deviceName, packageName, dbNames.get(0), params, deviceRegistry);
+                } else if ("*".equals(deviceName) || params.containsKey("devices")) {
+                    final List<String> dbNames = getDbNames(deviceName, packageName, dbName, params);
+                    if (dbNames.size() != 1) {
+                        throw new IllegalArgumentException("Only one db can be opened on several devices");
+                    }
+                    return new AdbDataConnection(AttachedDatabases.resolveDevices(params, deviceRegistry),
+                            packageName,
+                            dbNames.get(0),
+                            params,
+                            deviceRegistry,
+                            PIPELINES);
                 } else {
-                    return new AdbDataConnection(deviceName, packageName, dbName, params, jadb);
+                    return new AdbDataConnection(deviceName,
+                            packageName,
+                            getDbNames(deviceName, packageName, dbName, params),
+                            params,
+                            deviceRegistry,
+                            PIPELINES);
                 }
             } else {
                 throw new IllegalArgumentException(String.format("Unable to get package from %s", path));
@@ -129,11 +160,33 @@ public class AdbJdbcDriver implements Driver {
         log.debug("Called");
         try {
             jadb = new JadbConnection();
+            deviceRegistry = new DeviceRegistry(jadb);
         } catch (final IOException e) {
             throw new IllegalStateException("Unable to connect to adb", e);
         }
     }
 
+    /**
+     * Split comma separated list of dbs, glob patterns like
+     * {@code /databases/*.db} are resolved on device.
+     */
+    private List<String> getDbNames(final String deviceName, final String packageName, final String dbName,
+            final Map<String, String> params) throws SQLException {
+        log.debug("Called");
+        final List<String> dbNames = Arrays.stream(dbName.split(","))
+                .map(StringUtils::trim)
+                .filter(StringUtils::isNotEmpty)
+                .map(name -> name.startsWith("/") ? name : "/" + name)
+                .collect(Collectors.toList());
+        if (dbNames.size() == 1 && !AttachedDatabases.isPattern(dbNames.get(0))) {
+            return dbNames;
+        }
+        if ("*".equals(deviceName) || params.containsKey("devices")) {
+            throw new IllegalArgumentException("Db patterns are not supported on several devices");
+        }
+        return AttachedDatabases.resolve(deviceName, packageName, dbNames, params, deviceRegistry);
+    }
+
     @Override
     public int getMajorVersion() {
         log.debug("Called");
@@ -15,32 +15,196 @@
  ******************************************************************************/
 package com.anyqn.adbjdbc;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import lombok.RequiredArgsConstructor;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+
+import com.anyqn.adbjdbc.util.FunctionWithException;
+
+import lombok.NonNull;
 import lombok.experimental.Delegate;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Metadata of current db snapshot. Results of schema calls which IDEs repeat
+ * often ({@code getTables}, {@code getColumns}, {@code getIndexInfo},
+ * {@code getPrimaryKeys}, {@code getImportedKeys}, {@code getExportedKeys})
+ * are kept in memory as {@link CachedRowSet} keyed by call arguments. Cache is
+ * checked against SQLite schema cookies ({@code pragma schema_version}) of all
+ * attached dbs once per snapshot generation and is dropped only when schema
+ * changed on device.
+ */
 @Slf4j
-@RequiredArgsConstructor
 public class AdbJdbcMetadata implements DatabaseMetaData {
+    private final Connection owner;
+    private final ConnectionHolder connectionHolder;
+    private final Map<List<Object>, CachedRowSet> cache;
+    private long checkedGeneration;
+    private List<Integer> schemaVersions = List.of();
+
+    /**
+     * @param owner            connection returned by
+     *                         {@link DatabaseMetaData#getConnection()}
+     * @param connectionHolder holder of current snapshot
+     * @param cacheSize        max count of cached results, {@code 0} disables
+     *                         cache
+     */
+    public AdbJdbcMetadata(@NonNull final Connection owner, @NonNull final ConnectionHolder connectionHolder,
+            final int cacheSize) {
+        log.debug("Called");
+        this.owner = owner;
+        this.connectionHolder = connectionHolder;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<List<Object>, CachedRowSet> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Return cached result of call or run call on current snapshot and cache
+     * its result.
+     */
+    private synchronized ResultSet cached(final FunctionWithException<DatabaseMetaData, ResultSet, SQLException> call,
+            final Object... key) throws SQLException {
+        final List<Object> cacheKey = Arrays.asList(key);
+        final Snapshot snapshot = connectionHolder.retain();
+        try {
+            if (snapshot.getGeneration() != checkedGeneration) {
+                final List<Integer> versions = readSchemaVersions(snapshot.getConnection());
+                if (!versions.equals(schemaVersions)) {
+                    log.debug("Schema version changed from {} to {}, drop metadata cache", schemaVersions, versions);
+                    cache.clear();
+                    schemaVersions = versions;
+                }
+                checkedGeneration = snapshot.getGeneration();
+            }
+            CachedRowSet result = cache.get(cacheKey);
+            if (null == result) {
+                result = RowSetProvider.newFactory().createCachedRowSet();
+                try (ResultSet resultSet = call.accept(snapshot.getConnection().getMetaData())) {
+                    result.populate(resultSet);
+                }
+                cache.put(cacheKey, result);
+            } else {
+                log.debug("Metadata call {} taken from cache", key[0]);
+            }
+            return result.createShared();
+        } finally {
+            connectionHolder.release(snapshot);
+        }
+    }
 
+    /**
+     * Metadata of current snapshot for calls which are not cached.
+     */
     @Delegate
-    private final DatabaseMetaData delegate;
+    private DatabaseMetaData current() {
+        final Snapshot snapshot = connectionHolder.retain();
+        try {
+            return snapshot.getConnection().getMetaData();
+        } catch (final SQLException e) {
+            throw new IllegalStateException("Unable to get metadata of snapshot", e);
+        } finally {
+            connectionHolder.release(snapshot);
+        }
+    }
 
     @Override
     public ResultSet getColumns(final String catalog, final String schemaPattern, final String tableNamePattern,
             final String columnNamePattern) throws SQLException {
         log.debug("Called");
-        return delegate.getColumns(catalog, schemaPattern, tableNamePattern, columnNamePattern);
+        return cached(m -> m.getColumns(catalog, schemaPattern, tableNamePattern, columnNamePattern),
+                "getColumns",
+                catalog,
+                schemaPattern,
+                tableNamePattern,
+                columnNamePattern);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return owner;
+    }
+
+    @Override
+    public ResultSet getExportedKeys(final String catalog, final String schema, final String table)
+            throws SQLException {
+        log.debug("Called");
+        return cached(m -> m.getExportedKeys(catalog, schema, table), "getExportedKeys", catalog, schema, table);
+    }
+
+    @Override
+    public ResultSet getImportedKeys(final String catalog, final String schema, final String table)
+            throws SQLException {
+        log.debug("Called");
+        return cached(m -> m.getImportedKeys(catalog, schema, table), "getImportedKeys", catalog, schema, table);
+    }
+
+    @Override
+    public ResultSet getIndexInfo(final String catalog, final String schema, final String table,
+            final boolean unique, final boolean approximate) throws SQLException {
+        log.debug("Called");
+        return cached(m -> m.getIndexInfo(catalog, schema, table, unique, approximate),
+                "getIndexInfo",
+                catalog,
+                schema,
+                table,
+                unique,
+                approximate);
+    }
+
+    @Override
+    public ResultSet getPrimaryKeys(final String catalog, final String schema, final String table)
+            throws SQLException {
+        log.debug("Called");
+        return cached(m -> m.getPrimaryKeys(catalog, schema, table), "getPrimaryKeys", catalog, schema, table);
     }
 
     @Override
     public ResultSet getTables(final String catalog, final String schemaPattern, final String tableNamePattern,
             final String[] types) throws SQLException {
         log.debug("Called");
-        return delegate.getTables(catalog, schemaPattern, tableNamePattern, types);
+        return cached(m -> m.getTables(catalog, schemaPattern, tableNamePattern, types),
+                "getTables",
+                catalog,
+                schemaPattern,
+                tableNamePattern,
+                null == types ? null : Arrays.asList(types));
+    }
+
+    /**
+     * @return schema cookies of main and all attached dbs
+     */
+    private List<Integer> readSchemaVersions(final Connection connection) throws SQLException {
+        final List<Integer> versions = new ArrayList<>();
+        try (Statement statement = connection.createStatement()) {
+            final List<String> schemas = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery("pragma database_list")) {
+                while (resultSet.next()) {
+                    schemas.add(resultSet.getString("name"));
+                }
+            }
+            for (final String schema : schemas) {
+                try (ResultSet resultSet = statement
+                        .executeQuery(String.format("pragma \"%s\".schema_version", schema.replace("\"", "\"\"")))) {
+                    versions.add(resultSet.next() ? resultSet.getInt(1) : 0);
+                }
+            }
+        }
+        return versions;
     }
 }
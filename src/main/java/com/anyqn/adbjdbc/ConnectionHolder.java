@@ -15,55 +15,143 @@
  ******************************************************************************/
 package com.anyqn.adbjdbc;
 
-import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.concurrent.Semaphore;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
-import lombok.Data;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
-@Data
+/**
+ * Holder of current snapshot. Readers never block each other and are not
+ * blocked by refresh: they take reference to current snapshot with one CAS
+ * (see {@link #retain()}), refresh only swaps pointer to new snapshot.
+ */
 @Slf4j
 public class ConnectionHolder {
 
-    private Connection connection;
-    private final Semaphore attachBlocker = new Semaphore(1, true);
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final Queue<Snapshot> retired = new ConcurrentLinkedQueue<>();
+    private final CompletableFuture<Void> firstPublished = new CompletableFuture<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
 
-    public synchronized void acquire() throws InterruptedException {
-        log.info("Acquired semapgore");
-        attachBlocker.acquire();
+    /**
+     * @param listener called after every publish of new snapshot
+     */
+    public void addListener(@NonNull final Runnable listener) {
+        listeners.add(listener);
     }
 
-    public synchronized void close() throws InterruptedException, SQLException {
-        if (null != connection) {
-            connection.close();
+    public void close() {
+        log.debug("Called");
+        firstPublished.completeExceptionally(new IllegalStateException("Connection holder closed"));
+        retire(snapshot.getAndSet(null));
+    }
+
+    /**
+     * Fail connections waiting for first snapshot, nothing changes if snapshot
+     * is already published.
+     *
+     * @param cause error of snapshot creation
+     */
+    public void fail(@NonNull final Throwable cause) {
+        if (firstPublished.completeExceptionally(cause)) {
+            log.debug("First snapshot failed with error [{}]", cause.getMessage());
         }
     }
 
-    private Semaphore getAttachBlocker() {
-        return attachBlocker;
+    /**
+     * @return generation of current snapshot or 0 if there is no snapshot
+     */
+    public long getGeneration() {
+        final Snapshot current = snapshot.get();
+        return null == current ? 0 : current.getGeneration();
+    }
+
+    public boolean isExists() {
+        return snapshot.get() != null;
     }
 
-    public synchronized Connection getConnection() {
-        return connection;
+    /**
+     * Atomically replace current snapshot, old snapshot will be closed after
+     * last reader release it.
+     *
+     * @param newSnapshot opened and warmed snapshot
+     */
+    public void publish(@NonNull final Snapshot newSnapshot) {
+        log.debug("Called for generation {}", newSnapshot.getGeneration());
+        retire(snapshot.getAndSet(newSnapshot));
+        firstPublished.complete(null);
+        listeners.forEach(Runnable::run);
     }
 
-    public synchronized boolean isExists() throws SQLException, InterruptedException {
-        final boolean exists = connection != null && !connection.isClosed();
-        return exists;
+    public void release(@NonNull final Snapshot used) {
+        used.release();
+        sweep();
     }
 
-    public synchronized void release() {
-        log.info("Released semapgore");
-        attachBlocker.release();
+    public void removeListener(@NonNull final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return current snapshot with reference owned by caller
+     */
+    public Snapshot retain() {
+        while (true) {
+            final Snapshot current = snapshot.get();
+            if (null == current) {
+                throw new IllegalStateException("Connection temporary closed");
+            }
+            if (current.retain()) {
+                return current;
+            }
+        }
+    }
+
+    private void retire(final Snapshot old) {
+        if (null != old) {
+            log.debug("Snapshot generation {} retired", old.getGeneration());
+            old.release();
+            retired.add(old);
+        }
+        sweep();
+    }
+
+    private void sweep() {
+        if (!retired.isEmpty()) {
+            retired.removeIf(Snapshot::closeIfUnused);
+        }
     }
 
-    public void waitConnection() {
-        while (null == connection) {
-            try {
-                Thread.sleep(1000);
-            } catch (final InterruptedException e) {
+    /**
+     * Wait until first snapshot is published, returns immediately if it is
+     * already published.
+     *
+     * @param timeout in ms, 0 means wait without limit
+     */
+    public void waitConnection(final long timeout) throws SQLException {
+        try {
+            if (timeout > 0) {
+                firstPublished.get(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                firstPublished.get();
             }
+        } catch (final TimeoutException e) {
+            throw new SQLTimeoutException(String.format("Db is not loaded from device in %d ms", timeout), e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for db from device", e);
+        } catch (final ExecutionException e) {
+            throw new SQLException("Db will not be loaded from device", e.getCause());
         }
     }
 }
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.DeviceDetectionListener;
+import se.vidstige.jadb.DeviceWatcher;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Driver wide list of attached devices. List is updated by adb
+ * {@code host:track-devices} stream, so pollers do not ask adb server for
+ * devices on every run. Device properties are read once after device is
+ * attached and cached until it is detached. If tracking is not available
+ * devices are listed by {@link JadbConnection#getDevices()} on every call.
+ */
+@Slf4j
+public class DeviceRegistry implements DeviceDetectionListener {
+    @Getter
+    private final JadbConnection jadb;
+    private final Map<String, DeviceInfo> devices = new ConcurrentHashMap<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private DeviceWatcher watcher;
+    private volatile boolean tracking;
+
+    public DeviceRegistry(@NonNull final JadbConnection jadb) {
+        log.debug("Called");
+        this.jadb = jadb;
+    }
+
+    /**
+     * @param listener called from tracking thread when device is attached or
+     *                 detached
+     */
+    public void addListener(@NonNull final Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param identifier device serial or model name
+     * @return first attached device with such serial or model
+     */
+    public Optional<DeviceInfo> find(@NonNull final String identifier) throws IOException, JadbException {
+        for (final DeviceInfo device : getDevices()) {
+            if (identifier.equals(device.getSerial()) || identifier.equals(device.getModel().orElse(null))) {
+                return Optional.of(device);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return attached devices
+     */
+    public List<DeviceInfo> getDevices() throws IOException, JadbException {
+        startTracking();
+        if (!tracking) {
+            log.debug("Devices are not tracked, list them");
+            update(jadb.getDevices());
+        }
+        return new ArrayList<>(devices.values());
+    }
+
+    @Override
+    public void onDetect(final List<JadbDevice> detected) {
+        log.debug("Called with {} devices", detected.size());
+        final boolean changed = update(detected);
+        tracking = true;
+        if (changed) {
+            listeners.forEach(Runnable::run);
+        }
+    }
+
+    @Override
+    public void onException(final Exception e) {
+        log.warn("Devices tracking stopped with error [{}]", e);
+        synchronized (this) {
+            tracking = false;
+            watcher = null;
+        }
+    }
+
+    public void removeListener(@NonNull final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void startTracking() {
+        if (null == watcher) {
+            try {
+                watcher = jadb.createDeviceWatcher(this);
+                watcher.start();
+                log.debug("Devices tracking started");
+            } catch (final IOException e) {
+                log.warn("Unable to track devices, they will be listed on every poll, error [{}]", e);
+            }
+        }
+    }
+
+    private synchronized boolean update(final List<JadbDevice> detected) {
+        final Set<String> serials = new HashSet<>();
+        boolean changed = false;
+        for (final JadbDevice device : detected) {
+            serials.add(device.getSerial());
+            if (!devices.containsKey(device.getSerial())) {
+                log.debug("Device with serial {} attached", device.getSerial());
+                devices.put(device.getSerial(), new DeviceInfo(device));
+                changed = true;
+            }
+        }
+        changed |= devices.keySet().retainAll(serials);
+        return changed;
+    }
+
+    /**
+     * Attached device with properties cached until it is detached.
+     */
+    public static class DeviceInfo {
+        @Getter
+        private final JadbDevice device;
+        private final Map<String, String> properties = new ConcurrentHashMap<>();
+
+        private DeviceInfo(final JadbDevice device) {
+            this.device = device;
+        }
+
+        public Optional<String> getModel() {
+            return getProperty("ro.product.model");
+        }
+
+        /**
+         * @param name system property name
+         * @return property value, it is read from device only once
+         */
+        public Optional<String> getProperty(@NonNull final String name) {
+            final String cached = properties.get(name);
+            if (null != cached) {
+                return Optional.of(cached);
+            }
+            try {
+                final String value = StringUtils.trim(
+                        IOUtils.toString(device.executeShell("getprop " + name), Charset.defaultCharset()));
+                log.debug("Device with serial [{}] has property {} [{}]", device.getSerial(), name, value);
+                properties.put(name, value);
+                return Optional.of(value);
+            } catch (final Exception e) {
+                log.error("Fetching property from device with serial [{}] get error [{}]", device.getSerial(), e);
+                return Optional.empty();
+            }
+        }
+
+        public String getSerial() {
+            return device.getSerial();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.anyqn.adbjdbc.util.ConsumerWithException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Contention benchmark of reader access to snapshot: single permit semaphore
+ * (old access model) against reference counted {@link ConnectionHolder}. Every
+ * operation is trivial getter of connection, so benchmark shows only cost of
+ * access model.
+ */
+@Slf4j
+public class MainContention {
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final long DURATION_MS = 2000;
+
+    public static void main(final String[] args) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        final File dbFile = File.createTempFile("contention", ".db");
+        final ConnectionHolder holder = new ConnectionHolder();
+        holder.publish(Snapshot.open(dbFile));
+        final Semaphore attachBlocker = new Semaphore(1, true);
+
+        for (final int threads : THREADS) {
+            final long exclusive = measure(threads, (final Connection c) -> {
+                attachBlocker.acquire();
+                try {
+                    c.getAutoCommit();
+                } finally {
+                    attachBlocker.release();
+                }
+            }, holder);
+            final long shared = measure(threads, Connection::getAutoCommit, holder);
+            log.info("Threads {}: semaphore {} ops/s, snapshot references {} ops/s", threads, exclusive, shared);
+        }
+        holder.close();
+    }
+
+    private static long measure(final int threads, final ConsumerWithException<Connection, Exception> operation,
+            final ConnectionHolder holder) throws InterruptedException {
+        final LongAdder operations = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        final long deadline = System.currentTimeMillis() + DURATION_MS;
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline) {
+                        final Snapshot snapshot = holder.retain();
+                        try {
+                            operation.accept(snapshot.getConnection());
+                        } finally {
+                            holder.release(snapshot);
+                        }
+                        operations.increment();
+                    }
+                } catch (final Exception e) {
+                    throw new IllegalStateException("Benchmark operation failed", e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1000 / DURATION_MS;
+    }
+}
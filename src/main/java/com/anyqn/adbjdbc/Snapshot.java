@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opened copy of device db. Snapshot is reference counted: holder owns one
+ * reference, every call in progress owns one more. Statements created on
+ * snapshot keep it alive until they are closed, so replaced snapshot is closed
+ * and its files are deleted only after last reader finished. Snapshot can
+ * attach other snapshots as schemas (see {@link #attach(Map, Runnable)}).
+ * Db files are opened read only, snapshot connection is shared by all
+ * connections of db and is replaced on every refresh, so writes fail.
+ */
+@Slf4j
+public class Snapshot {
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+    private static final String[] SQLITE_FILE_SUFFIXES = { "", "-wal", "-shm", "-journal" };
+
+    @Getter
+    private final long generation = GENERATIONS.incrementAndGet();
+    @Getter
+    private final Connection connection;
+    private final File dbFile;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final List<WeakReference<Statement>> statements = new ArrayList<>();
+    private final Runnable onClose;
+
+    private Snapshot(final File dbFile, @NonNull final Connection connection, final Runnable onClose) {
+        log.debug("Called");
+        this.dbFile = dbFile;
+        this.connection = connection;
+        this.onClose = onClose;
+    }
+
+    private void close() {
+        log.debug("Called for generation {}", generation);
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            log.error("Unable to close snapshot connection with error [{}]", e);
+        }
+        if (null != dbFile) {
+            for (final String suffix : SQLITE_FILE_SUFFIXES) {
+                final File file = new File(dbFile.getAbsolutePath() + suffix);
+                if (file.exists()) {
+                    log.debug("Old db file copy delete {}", file.getAbsolutePath());
+                    file.delete();
+                }
+            }
+        }
+        if (null != onClose) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Close snapshot if nobody uses it.
+     *
+     * @return true if snapshot closed
+     */
+    public boolean closeIfUnused() {
+        if (references.get() > 0) {
+            return false;
+        }
+        synchronized (statements) {
+            statements.removeIf(this::isClosed);
+            if (!statements.isEmpty()) {
+                return false;
+            }
+        }
+        if (closed.compareAndSet(false, true)) {
+            close();
+        }
+        return true;
+    }
+
+    private boolean isClosed(final WeakReference<Statement> reference) {
+        final Statement statement = reference.get();
+        try {
+            return null == statement || statement.isClosed();
+        } catch (final SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Release one reference, after release of holder reference snapshot is
+     * closed by {@link #closeIfUnused()}.
+     */
+    public void release() {
+        references.decrementAndGet();
+    }
+
+    /**
+     * Take one more reference if snapshot is not released yet.
+     *
+     * @return false if snapshot already released by all owners
+     */
+    public boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Remember statements created on snapshot connection, snapshot is not
+     * closed while they are open.
+     *
+     * @param response any object returned by snapshot connection
+     * @return same object
+     */
+    public <R> R track(final R response) {
+        if (response instanceof Statement) {
+            synchronized (statements) {
+                statements.add(new WeakReference<>((Statement) response));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Open db file and warm up connection before it will be published.
+     *
+     * @param dbFile copy of device db on host
+     * @return snapshot with one reference owned by caller
+     */
+    public static Snapshot open(@NonNull final File dbFile) throws SQLException {
+        log.debug("Called for {}", dbFile);
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath(),
+                config.toProperties());
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("select count(*) from sqlite_master")) {
+            resultSet.next();
+        } catch (final SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new Snapshot(dbFile, connection, null);
+    }
+
+    /**
+     * Open in-memory db with db files of other snapshots attached read only as
+     * schemas, so queries can join tables of several dbs. Snapshots stay in use
+     * until composite snapshot is closed.
+     *
+     * @param members retained snapshots by schema name
+     * @param onClose releases members when composite snapshot is closed
+     * @return snapshot with one reference owned by caller
+     */
+    public static Snapshot attach(@NonNull final Map<String, Snapshot> members, @NonNull final Runnable onClose)
+            throws SQLException {
+        log.debug("Called for {}", members.keySet());
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:", config.toProperties());
+        try (Statement statement = connection.createStatement()) {
+            for (final Entry<String, Snapshot> member : members.entrySet()) {
+                final String schema = member.getKey().replace("\"", "\"\"");
+                statement.executeUpdate(String.format("attach database '%s?mode=ro' as \"%s\"",
+                        member.getValue().dbFile.toURI().toString().replace("'", "''"),
+                        schema));
+                try (ResultSet resultSet = statement
+                        .executeQuery(String.format("select count(*) from \"%s\".sqlite_master", schema))) {
+                    resultSet.next();
+                }
+            }
+        } catch (final SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new Snapshot(null, connection, onClose);
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+
+import lombok.Value;
+
+/**
+ * Decoded first {@link #HEADER_SIZE} bytes of SQLite db file, see
+ * <a href="https://www.sqlite.org/fileformat.html#the_database_header">database
+ * header format</a>.
+ */
+@Value
+public class SqliteHeader {
+    public static final int HEADER_SIZE = 100;
+    private static final byte[] MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int WAL_VERSION = 2;
+
+    int pageSize;
+    long pageCount;
+    long freelistCount;
+    long schemaCookie;
+    boolean walMode;
+    long changeCounter;
+
+    /**
+     * @param header first bytes of file
+     * @param size   size of file, used for page count when in-header page
+     *               count is not valid (db written by old SQLite version)
+     * @return decoded header or empty if file is not SQLite db
+     */
+    public static Optional<SqliteHeader> parse(final byte[] header, final long size) {
+        if (null == header || header.length < HEADER_SIZE
+                || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            return Optional.empty();
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(header);
+        final int rawPageSize = Short.toUnsignedInt(buffer.getShort(16));
+        final int pageSize = rawPageSize == 1 ? 65536 : rawPageSize;
+        final long changeCounter = Integer.toUnsignedLong(buffer.getInt(24));
+        long pageCount = Integer.toUnsignedLong(buffer.getInt(28));
+        if (pageCount == 0 || changeCounter != Integer.toUnsignedLong(buffer.getInt(92))) {
+            pageCount = pageSize > 0 ? size / pageSize : 0;
+        }
+        return Optional.of(new SqliteHeader(pageSize,
+                pageCount,
+                Integer.toUnsignedLong(buffer.getInt(36)),
+                Integer.toUnsignedLong(buffer.getInt(40)),
+                header[18] == WAL_VERSION && header[19] == WAL_VERSION,
+                changeCounter));
+    }
+}
@@ -23,48 +23,132 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
+import com.anyqn.adbjdbc.AdbJdbcMetadata;
 import com.anyqn.adbjdbc.ConnectionHolder;
+import com.anyqn.adbjdbc.DeviceRegistry;
+import com.anyqn.adbjdbc.Snapshot;
 import com.anyqn.adbjdbc.util.ConsumerWithException;
 import com.anyqn.adbjdbc.util.FunctionWithException;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import se.vidstige.jadb.JadbConnection;
 
 @Slf4j
 public class AdbDataConnection implements java.sql.Connection {
 
-    private DataFetchingTask dataFetchingTask;
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    private final ConnectionHolder connectionHolder = new ConnectionHolder();
+    private final FetchPipelineRegistry pipelines;
+    private final FetchPipeline pipeline;
+    private final AttachedDatabases attached;
+    private final ConnectionHolder connectionHolder;
+    private final StatementCache statementCache;
+    private final QueryResultCache resultCache;
+    private final AdbJdbcMetadata metadata;
+    private final long connectTimeout;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    // Snapshot connection is shared by all connections of pipeline, so
+    // transaction options are kept per connection and never applied to it
+    private boolean autoCommit = true;
+    private int transactionIsolation = Connection.TRANSACTION_SERIALIZABLE;
+    private int holdability = ResultSet.CLOSE_CURSORS_AT_COMMIT;
+    private Map<String, Class<?>> typeMap = new HashMap<>();
+    private int networkTimeout;
+
+    /**
+     * @param dbNames paths of dbs relative to data dir of package, several dbs
+     *                are attached to one connection as schemas
+     */
+    public AdbDataConnection(@NonNull final String deviceName, @NonNull final String packageName,
+            @NonNull final List<String> dbNames, final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry, @NonNull final FetchPipelineRegistry pipelines)
+            throws SQLException {
+        this(params,
+                pipelines,
+                dbNames.size() == 1
+                        ? pipelines.acquire(deviceName, packageName, dbNames.get(0), params, deviceRegistry)
+                        : null,
+                dbNames.size() == 1
+                        ? null
+                        : new AttachedDatabases(deviceName, packageName, dbNames, params, deviceRegistry, pipelines));
+    }
+
+    /**
+     * Connection to copies of one db from several devices, tables are merged
+     * by views with {@code device_serial} column.
+     *
+     * @param deviceSerials devices which copies of db are merged
+     */
+    public AdbDataConnection(@NonNull final List<String> deviceSerials, @NonNull final String packageName,
+            @NonNull final String dbName, final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry, @NonNull final FetchPipelineRegistry pipelines)
+            throws SQLException {
+        this(params,
+                pipelines,
+                null,
+                new AttachedDatabases(deviceSerials, packageName, dbName, params, deviceRegistry, pipelines));
+    }
+
+    private AdbDataConnection(final Map<String, String> params, final FetchPipelineRegistry pipelines,
+            final FetchPipeline pipeline, final AttachedDatabases attached) throws SQLException {
+        log.debug("Called");
+        statementCache = new StatementCache(Integer.parseInt(params.getOrDefault("statementCacheSize", "64")));
+        // composite snapshot of attached dbs belongs to one connection, so its
+        // cache is not shared
+        if (!Boolean.parseBoolean(params.getOrDefault("queryCache", "false"))) {
+            resultCache = null;
+        } else if (null != pipeline) {
+            resultCache = pipeline.getResultCache(params);
+        } else {
+            resultCache = FetchPipeline.createResultCache(params);
+        }
+        this.pipelines = pipelines;
+        this.pipeline = pipeline;
+        this.attached = attached;
+        connectionHolder = null != attached ? attached.getConnectionHolder() : pipeline.getConnectionHolder();
+        connectTimeout = Long.parseLong(params.getOrDefault("connectTimeout", "0"));
+        metadata = new AdbJdbcMetadata(this,
+                connectionHolder,
+                Integer.parseInt(params.getOrDefault("metadataCacheSize", "256")));
+        if (!Boolean.parseBoolean(params.getOrDefault("asyncConnect", "false"))) {
+            try {
+                awaitConnection();
+            } catch (final SQLException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+    }
 
-    public AdbDataConnection(@NonNull final String deviceName, @NonNull final String packageName, final String dbName,
-            final Map<String, String> params, @NonNull final JadbConnection jadb) throws SQLException {
-        log.debug("Called");
-        createPoolingTask(deviceName, packageName, dbName, params, jadb);
-        startMetadataPooling(Long.valueOf(params.getOrDefault("initialDelay", "0")),
-                Long.valueOf(params.getOrDefault("period", "60000")));
-        connectionHolder.waitConnection();
+    /**
+     * Wait for first db snapshot, in async connect mode it is called by first
+     * usage of connection.
+     */
+    private void awaitConnection() throws SQLException {
+        if (!connected) {
+            connectionHolder.waitConnection(connectTimeout);
+            connected = true;
+        }
     }
 
     @Override
     public void abort(final Executor executor) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.abort(executor));
+        close();
     }
 
     @Override
@@ -76,13 +160,24 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public void close() throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.close());
+        if (!closed) {
+            closed = true;
+            statementCache.close();
+            if (null != attached) {
+                if (null != resultCache) {
+                    resultCache.clear();
+                }
+                attached.close();
+            } else {
+                pipelines.release(pipeline);
+            }
+        }
     }
 
     @Override
     public void commit() throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.commit());
+        checkTransaction();
     }
 
     @Override
@@ -109,13 +204,6 @@ public class AdbDataConnection implements java.sql.Connection {
         return getFromConnection((final Connection c) -> c.createNClob());
     }
 
-    private void createPoolingTask(@NonNull final String deviceIdentifier, @NonNull final String packageName,
-            final String dbPath, @NonNull final Map<String, String> params, @NonNull final JadbConnection jadb)
-            throws SQLException {
-        log.debug("Called trying to start with package name {} and db name {}", packageName, dbPath);
-        dataFetchingTask = new DataFetchingTask(deviceIdentifier, packageName, dbPath, params, connectionHolder, jadb);
-    }
-
     @Override
     public SQLXML createSQLXML() throws SQLException {
         log.debug("Called");
@@ -125,21 +213,30 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public Statement createStatement() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.createStatement());
+        awaitConnection();
+        return SnapshotStatement
+                .create(this, connectionHolder, (final Connection c) -> c.createStatement(), resultCache);
     }
 
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.createStatement(resultSetType, resultSetConcurrency));
+        awaitConnection();
+        return SnapshotStatement.create(this,
+                connectionHolder,
+                (final Connection c) -> c.createStatement(resultSetType, resultSetConcurrency),
+                resultCache);
     }
 
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency,
             final int resultSetHoldability) throws SQLException {
         log.debug("Called");
-        return getFromConnection(
-                (final Connection c) -> c.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+        awaitConnection();
+        return SnapshotStatement.create(this,
+                connectionHolder,
+                (final Connection c) -> c.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability),
+                resultCache);
     }
 
     @Override
@@ -148,12 +245,29 @@ public class AdbDataConnection implements java.sql.Connection {
         return getFromConnection((final Connection c) -> c.createStruct(typeName, attributes));
     }
 
+    /**
+     * Snapshot is opened read only, writes fail, so transaction has nothing to
+     * commit or roll back.
+     */
+    private void checkTransaction() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        if (autoCommit) {
+            throw new SQLException("Connection is in auto-commit mode");
+        }
+    }
+
     private void executeInConnection(final ConsumerWithException<Connection, ? extends Exception> consumer) {
         try {
+            awaitConnection();
             if (connectionHolder.isExists()) {
-                connectionHolder.acquire();
-                consumer.accept(connectionHolder.getConnection());
-                connectionHolder.release();
+                final Snapshot snapshot = connectionHolder.retain();
+                try {
+                    consumer.accept(snapshot.getConnection());
+                } finally {
+                    connectionHolder.release(snapshot);
+                }
             }
         } catch (final Exception e) {
             throw new RuntimeException(e);
@@ -163,7 +277,7 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public boolean getAutoCommit() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getAutoCommit());
+        return autoCommit;
     }
 
     @Override
@@ -187,12 +301,16 @@ public class AdbDataConnection implements java.sql.Connection {
     private <R> R getFromConnection(final FunctionWithException<Connection, R, Exception> consumer)
             throws SQLException {
         try {
+            awaitConnection();
             if (connectionHolder.isExists()) {
-                connectionHolder.acquire();
-                final R response = consumer.accept(connectionHolder.getConnection());
-                connectionHolder.release();
-                log.debug("Method call response {}", response);
-                return response;
+                final Snapshot snapshot = connectionHolder.retain();
+                try {
+                    final R response = snapshot.track(consumer.accept(snapshot.getConnection()));
+                    log.debug("Method call response {}", response);
+                    return response;
+                } finally {
+                    connectionHolder.release(snapshot);
+                }
             } else {
                 throw new IllegalStateException("Connection temporary closed");
             }
@@ -204,19 +322,20 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public int getHoldability() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getHoldability());
+        return holdability;
     }
 
     @Override
     public DatabaseMetaData getMetaData() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getMetaData());
+        awaitConnection();
+        return metadata;
     }
 
     @Override
     public int getNetworkTimeout() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getNetworkTimeout());
+        return networkTimeout;
     }
 
     @Override
@@ -228,13 +347,13 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public int getTransactionIsolation() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getTransactionIsolation());
+        return transactionIsolation;
     }
 
     @Override
     public Map<String, Class<?>> getTypeMap() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.getTypeMap());
+        return typeMap;
     }
 
     @Override
@@ -246,13 +365,13 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public boolean isClosed() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.isClosed());
+        return closed || connected && getFromConnection((final Connection c) -> c.isClosed());
     }
 
     @Override
     public boolean isReadOnly() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.isReadOnly());
+        return true;
     }
 
     @Override
@@ -297,64 +416,104 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.prepareStatement(sql));
+        awaitConnection();
+        return SnapshotStatement
+                .prepare(this,
+                        connectionHolder,
+                        (final Connection c) -> c.prepareStatement(sql),
+                        sql,
+                        statementCache,
+                        resultCache);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.prepareStatement(sql, autoGeneratedKeys));
+        awaitConnection();
+        return SnapshotStatement.prepare(this,
+                connectionHolder,
+                (final Connection c) -> c.prepareStatement(sql, autoGeneratedKeys),
+                sql,
+                null,
+                resultCache);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency)
             throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.prepareStatement(sql, resultSetType, resultSetConcurrency));
+        awaitConnection();
+        return SnapshotStatement.prepare(this,
+                connectionHolder,
+                (final Connection c) -> c.prepareStatement(sql, resultSetType, resultSetConcurrency),
+                sql,
+                null,
+                resultCache);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
             final int resultSetHoldability) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c
-                .prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+        awaitConnection();
+        return SnapshotStatement.prepare(this,
+                connectionHolder,
+                (final Connection c) -> c
+                        .prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
+                sql,
+                null,
+                resultCache);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.prepareStatement(sql, columnIndexes));
+        awaitConnection();
+        return SnapshotStatement.prepare(this,
+                connectionHolder,
+                (final Connection c) -> c.prepareStatement(sql, columnIndexes),
+                sql,
+                null,
+                resultCache);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.prepareStatement(sql, columnNames));
+        awaitConnection();
+        return SnapshotStatement.prepare(this,
+                connectionHolder,
+                (final Connection c) -> c.prepareStatement(sql, columnNames),
+                sql,
+                null,
+                resultCache);
     }
 
     @Override
     public void releaseSavepoint(final Savepoint savepoint) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.releaseSavepoint(savepoint));
+        throw new SQLFeatureNotSupportedException("Savepoints of read only snapshot");
     }
 
     @Override
     public void rollback() throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.rollback());
+        checkTransaction();
     }
 
     @Override
     public void rollback(final Savepoint savepoint) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.rollback());
+        throw new SQLFeatureNotSupportedException("Savepoints of read only snapshot");
     }
 
     @Override
     public void setAutoCommit(final boolean autoCommit) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setAutoCommit(autoCommit));
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        this.autoCommit = autoCommit;
     }
 
     @Override
@@ -378,31 +537,31 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public void setHoldability(final int holdability) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setHoldability(holdability));
+        this.holdability = holdability;
     }
 
     @Override
     public void setNetworkTimeout(final Executor executor, final int milliseconds) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setNetworkTimeout(executor, milliseconds));
+        networkTimeout = milliseconds;
     }
 
     @Override
     public void setReadOnly(final boolean readOnly) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setReadOnly(readOnly));
+        // hint only, snapshot is always opened read only
     }
 
     @Override
     public Savepoint setSavepoint() throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.setSavepoint());
+        throw new SQLFeatureNotSupportedException("Savepoints of read only snapshot");
     }
 
     @Override
     public Savepoint setSavepoint(final String name) throws SQLException {
         log.debug("Called");
-        return getFromConnection((final Connection c) -> c.setSavepoint(name));
+        throw new SQLFeatureNotSupportedException("Savepoints of read only snapshot");
     }
 
     @Override
@@ -414,18 +573,13 @@ public class AdbDataConnection implements java.sql.Connection {
     @Override
     public void setTransactionIsolation(final int level) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setTransactionIsolation(level));
+        transactionIsolation = level;
     }
 
     @Override
     public void setTypeMap(final Map<String, Class<?>> map) throws SQLException {
         log.debug("Called");
-        executeInConnection((final Connection c) -> c.setTypeMap(map));
-    }
-
-    private void startMetadataPooling(final long initialDelay, final long period) {
-        log.debug("Called");
-        executor.scheduleWithFixedDelay(dataFetchingTask, initialDelay, period, TimeUnit.MILLISECONDS);
+        typeMap = map;
     }
 
     @Override
@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.anyqn.adbjdbc.ConnectionHolder;
+import com.anyqn.adbjdbc.DeviceRegistry;
+import com.anyqn.adbjdbc.Snapshot;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Several dbs in one connection. Every db has own fetch pipeline and is
+ * refreshed independently, after any of them is refreshed new composite
+ * snapshot attaches current copies of all dbs as schemas, so SQLite can join
+ * tables of different dbs. Dbs of one device are named by db file name. Copies
+ * of one db from several devices are named by device serial and their tables
+ * are merged by temporary {@code UNION ALL} views with {@code device_serial}
+ * column, devices which are not loaded yet (slow or offline) are skipped.
+ */
+@Slf4j
+public class AttachedDatabases {
+    private static final Pattern GLOB = Pattern.compile("[*?\\[]");
+    private static final Pattern SAFE_PATTERN = Pattern.compile("[\\w./*?\\[\\]-]+");
+    private static final Set<String> RESERVED_SCHEMAS = Set.of("main", "temp");
+    private static final String[] SQLITE_FILE_SUFFIXES = { "-wal", "-shm", "-journal" };
+    private static final String DEVICE_COLUMN = "device_serial";
+    // SQLITE_MAX_ATTACHED of SQLite builds used by sqlite-jdbc
+    private static final int MAX_ATTACHED = 10;
+
+    @Getter
+    private final ConnectionHolder connectionHolder = new ConnectionHolder();
+    private final FetchPipelineRegistry pipelines;
+    private final Map<String, FetchPipeline> members = new LinkedHashMap<>();
+    private final Map<String, String> serials = new LinkedHashMap<>();
+    private final Runnable rebuild = this::rebuild;
+    private boolean closed;
+
+    /**
+     * @param dbNames paths of dbs relative to data dir of package
+     */
+    public AttachedDatabases(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final List<String> dbNames, @NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry, @NonNull final FetchPipelineRegistry pipelines)
+            throws SQLException {
+        log.debug("Called");
+        checkAttachLimit(dbNames.size(), "dbs");
+        this.pipelines = pipelines;
+        try {
+            for (final String dbName : dbNames) {
+                members.put(schemaName(FilenameUtils.getBaseName(dbName), members.keySet()),
+                        pipelines.acquire(deviceIdentifier, packageName, dbName, params, deviceRegistry));
+            }
+        } catch (final SQLException | RuntimeException e) {
+            members.values().forEach(pipelines::release);
+            throw e;
+        }
+        log.info("Attach dbs {} as schemas {}", dbNames, members.keySet());
+        start();
+    }
+
+    /**
+     * @param deviceSerials devices which copies of db are merged
+     * @param dbName        path of db relative to data dir of package
+     */
+    public AttachedDatabases(@NonNull final List<String> deviceSerials, @NonNull final String packageName,
+            @NonNull final String dbName, @NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry, @NonNull final FetchPipelineRegistry pipelines)
+            throws SQLException {
+        log.debug("Called");
+        checkAttachLimit(deviceSerials.size(), "devices");
+        this.pipelines = pipelines;
+        try {
+            for (final String serial : deviceSerials) {
+                final String schema = schemaName(serial, members.keySet());
+                members.put(schema, pipelines.acquire(serial, packageName, dbName, params, deviceRegistry));
+                serials.put(schema, serial);
+            }
+        } catch (final SQLException | RuntimeException e) {
+            members.values().forEach(pipelines::release);
+            throw e;
+        }
+        log.info("Attach db {} of devices {} as schemas {}", dbName, deviceSerials, members.keySet());
+        start();
+    }
+
+    /**
+     * Fail before pipelines are started, composite snapshot with more
+     * schemas can not be attached.
+     */
+    private static void checkAttachLimit(final int count, final String what) throws SQLException {
+        if (count > MAX_ATTACHED) {
+            throw new SQLException(String.format("Unable to attach %d %s, SQLite attaches at most %d dbs",
+                    count,
+                    what,
+                    MAX_ATTACHED));
+        }
+    }
+
+    private void start() {
+        members.values().forEach(pipeline -> pipeline.getConnectionHolder().addListener(rebuild));
+        rebuild();
+    }
+
+    /**
+     * Release pipelines of attached dbs, current composite snapshot is closed
+     * after last reader released it.
+     */
+    public void close() {
+        log.debug("Called");
+        synchronized (this) {
+            closed = true;
+        }
+        members.values().forEach(pipeline -> pipeline.getConnectionHolder().removeListener(rebuild));
+        connectionHolder.close();
+        members.values().forEach(pipelines::release);
+    }
+
+    /**
+     * Merge tables of device schemas by temporary views with device serial
+     * column. Columns which are absent in db of some device (other version of
+     * application) are selected as null.
+     */
+    private void createUnionViews(final Connection connection, final Set<String> schemas) throws SQLException {
+        final Map<String, Set<String>> tableColumns = new LinkedHashMap<>();
+        final Map<String, Map<String, Set<String>>> schemaColumns = new HashMap<>();
+        try (Statement statement = connection.createStatement()) {
+            for (final String schema : schemas) {
+                final List<String> tables = new ArrayList<>();
+                try (ResultSet resultSet = statement.executeQuery(String.format("select name from %s.sqlite_master"
+                        + " where type in ('table', 'view') and name not like 'sqlite_%%'", quote(schema)))) {
+                    while (resultSet.next()) {
+                        tables.add(resultSet.getString(1));
+                    }
+                }
+                for (final String table : tables) {
+                    final Set<String> columns = new LinkedHashSet<>();
+                    try (ResultSet resultSet = statement
+                            .executeQuery(String.format("pragma %s.table_info(%s)", quote(schema), quote(table)))) {
+                        while (resultSet.next()) {
+                            columns.add(resultSet.getString("name"));
+                        }
+                    }
+                    schemaColumns.computeIfAbsent(schema, k -> new HashMap<>()).put(table, columns);
+                    tableColumns.computeIfAbsent(table, k -> new LinkedHashSet<>()).addAll(columns);
+                }
+            }
+            for (final Entry<String, Set<String>> table : tableColumns.entrySet()) {
+                final List<String> selects = new ArrayList<>();
+                for (final String schema : schemas) {
+                    final Set<String> columns = schemaColumns.getOrDefault(schema, Map.of()).get(table.getKey());
+                    if (null != columns) {
+                        selects.add(String.format("select '%s' as %s, %s from %s.%s",
+                                serials.get(schema).replace("'", "''"),
+                                DEVICE_COLUMN,
+                                table.getValue()
+                                        .stream()
+                                        .map(c -> columns.contains(c) ? quote(c) : "null as " + quote(c))
+                                        .collect(Collectors.joining(", ")),
+                                quote(schema),
+                                quote(table.getKey())));
+                    }
+                }
+                statement.executeUpdate(String.format("create temp view %s as %s",
+                        quote(table.getKey()),
+                        String.join(" union all ", selects)));
+            }
+        }
+        log.debug("Union views created for tables {}", tableColumns.keySet());
+    }
+
+    /**
+     * Publish composite snapshot of current snapshots of dbs. Dbs of one device
+     * are published only when every db is loaded, copies of devices are
+     * published when at least one device is loaded.
+     */
+    private synchronized void rebuild() {
+        log.debug("Called");
+        if (closed) {
+            return;
+        }
+        final Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+        final Snapshot composite;
+        try {
+            for (final Entry<String, FetchPipeline> member : members.entrySet()) {
+                if (!member.getValue().getConnectionHolder().isExists()) {
+                    log.debug("Db of schema {} is not loaded yet", member.getKey());
+                    if (serials.isEmpty()) {
+                        release(snapshots);
+                        return;
+                    }
+                    continue;
+                }
+                snapshots.put(member.getKey(), member.getValue().getConnectionHolder().retain());
+            }
+            if (snapshots.isEmpty()) {
+                return;
+            }
+            composite = Snapshot.attach(snapshots, () -> release(snapshots));
+        } catch (final SQLException | RuntimeException e) {
+            log.error("Unable to attach dbs with error [{}]", e);
+            release(snapshots);
+            connectionHolder.fail(e);
+            return;
+        }
+        try {
+            if (!serials.isEmpty()) {
+                createUnionViews(composite.getConnection(), snapshots.keySet());
+            }
+            connectionHolder.publish(composite);
+        } catch (final SQLException | RuntimeException e) {
+            log.error("Unable to merge dbs of devices with error [{}]", e);
+            composite.release();
+            composite.closeIfUnused();
+            connectionHolder.fail(e);
+        }
+    }
+
+    private static String quote(final String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private void release(final Map<String, Snapshot> snapshots) {
+        for (final Entry<String, Snapshot> snapshot : snapshots.entrySet()) {
+            members.get(snapshot.getKey()).getConnectionHolder().release(snapshot.getValue());
+        }
+        snapshots.clear();
+    }
+
+    /**
+     * @param dbName path of db relative to data dir of package
+     * @return true if path is glob pattern which should be resolved on device
+     */
+    public static boolean isPattern(@NonNull final String dbName) {
+        return GLOB.matcher(dbName).find();
+    }
+
+    /**
+     * Resolve glob patterns to db files existing on device, journal files are
+     * skipped.
+     *
+     * @param dbNames paths and glob patterns relative to data dir of package
+     * @return paths of files relative to data dir of package
+     */
+    public static List<String> resolve(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final List<String> dbNames, @NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        log.debug("Called");
+        final String root = params.getOrDefault("applicationDataRootPath", "/data/data/") + packageName;
+        final List<String> resolved = new ArrayList<>();
+        for (final String dbName : dbNames) {
+            if (!isPattern(dbName)) {
+                resolved.add(dbName);
+                continue;
+            }
+            if (!SAFE_PATTERN.matcher(dbName).matches()) {
+                throw new IllegalArgumentException(String.format("Unsupported characters in db pattern %s", dbName));
+            }
+            try {
+                final Optional<DeviceRegistry.DeviceInfo> device = deviceRegistry.find(deviceIdentifier);
+                if (device.isEmpty()) {
+                    throw new SQLException(String.format("Device %s is not found to resolve %s",
+                            deviceIdentifier,
+                            dbName));
+                }
+                try (InputStream in = device.get()
+                        .getDevice()
+                        .executeShell(String.format(
+                                "run-as %s sh -c 'for f in %s%s; do [ -f \"$f\" ] && echo \"$f\"; done'",
+                                packageName,
+                                root,
+                                dbName))) {
+                    resolved.addAll(IOUtils.readLines(in, Charset.defaultCharset())
+                            .stream()
+                            .map(StringUtils::trim)
+                            .filter(f -> f.startsWith(root + "/") && !StringUtils.endsWithAny(f, SQLITE_FILE_SUFFIXES))
+                            .map(f -> f.substring(root.length()))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } catch (final IOException | JadbException e) {
+                throw new SQLException(String.format("Unable to resolve db pattern %s", dbName), e);
+            }
+        }
+        if (resolved.isEmpty()) {
+            throw new SQLException(String.format("No db files found by %s", dbNames));
+        }
+        checkAttachLimit(resolved.size(), "dbs " + resolved);
+        return resolved;
+    }
+
+    /**
+     * Devices of fan-out connection: devices listed by {@code devices} param
+     * (serials or model names) or all attached devices.
+     *
+     * @return device serials, listed devices which are not attached now are
+     *         kept as is
+     */
+    public static List<String> resolveDevices(@NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        log.debug("Called");
+        try {
+            if (!params.containsKey("devices")) {
+                final List<String> serials = deviceRegistry.getDevices()
+                        .stream()
+                        .map(DeviceRegistry.DeviceInfo::getSerial)
+                        .collect(Collectors.toList());
+                if (serials.isEmpty()) {
+                    throw new SQLException("No attached devices found");
+                }
+                return serials;
+            }
+            final List<String> serials = new ArrayList<>();
+            for (final String identifier : StringUtils.split(params.get("devices"), ',')) {
+                serials.add(deviceRegistry.find(identifier.trim())
+                        .map(DeviceRegistry.DeviceInfo::getSerial)
+                        .orElse(identifier.trim()));
+            }
+            return serials;
+        } catch (final IOException | JadbException e) {
+            throw new SQLException("Unable to get list of devices", e);
+        }
+    }
+
+    /**
+     * Schema name from db file name without extension or device serial,
+     * characters other than letters, digits and underscore are replaced,
+     * reserved and duplicate names get suffix.
+     */
+    private static String schemaName(final String source, final Set<String> used) {
+        String name = source.replaceAll("\\W", "_");
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            name = "_" + name;
+        }
+        if (RESERVED_SCHEMAS.contains(name.toLowerCase(Locale.ROOT))) {
+            name = name + "_db";
+        }
+        final Set<String> lowerCaseUsed = new HashSet<>();
+        used.forEach(u -> lowerCaseUsed.add(u.toLowerCase(Locale.ROOT)));
+        String unique = name;
+        for (int i = 2; lowerCaseUsed.contains(unique.toLowerCase(Locale.ROOT)); i++) {
+            unique = name + "_" + i;
+        }
+        return unique;
+    }
+}
@@ -17,54 +17,175 @@ package com.anyqn.adbjdbc.data;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.sql.DriverManager;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import com.anyqn.adbjdbc.AbstractFetchingTask;
 import com.anyqn.adbjdbc.ConnectionHolder;
+import com.anyqn.adbjdbc.DeviceRegistry;
+import com.anyqn.adbjdbc.FetchResult;
+import com.anyqn.adbjdbc.Snapshot;
+import com.anyqn.adbjdbc.SqliteHeader;
 
 import lombok.NonNull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import se.vidstige.jadb.JadbConnection;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 
 @Slf4j
 public class DataFetchingTask extends AbstractFetchingTask {
+    private static final String HEADER_MARK = "header";
     private final String dbName;
+    private final String dbAbsolutePath;
     private OffsetDateTime lastModifiedDbDate;
-    private File lastDbCopy;
+    private long lastDbSize;
+    private byte[] lastDbHeader;
+    private final boolean headerChangeDetection;
     private final ConnectionHolder connectionHolder;
+    private final DeviceFileTransfer transfer;
+    private final DeltaSync deltaSync;
+    private final boolean deltaSyncEnabled;
+    private final WalSync walSync;
+    private final SnapshotStore store;
+    private final int storeInterval;
+    private SnapshotStore.StoredDb unstored;
+    private int unstoredRefreshes;
+    private boolean storedOnce;
+    private File mirror;
+    private String mirrorSerial;
+    private boolean running;
+    private boolean closed;
 
     public DataFetchingTask(@NonNull final String deviceIdentifier, @NonNull final String packageName,
             @NonNull final String dbName, @NonNull final Map<String, String> params,
-            @NonNull final ConnectionHolder connectionHolder, @NonNull final JadbConnection jadb) throws SQLException {
-        super(deviceIdentifier, packageName, params, jadb);
+            @NonNull final ConnectionHolder connectionHolder, @NonNull final DeviceRegistry deviceRegistry)
+            throws SQLException {
+        super(deviceIdentifier, packageName, params, deviceRegistry);
         log.debug("Called");
         this.connectionHolder = connectionHolder;
         this.dbName = dbName;
+        dbAbsolutePath = params.getOrDefault("applicationDataRootPath", "/data/data/") + packageName + dbName;
+        transfer = new DeviceFileTransfer(params);
+        deltaSync = new DeltaSync(params);
+        deltaSyncEnabled = Boolean.parseBoolean(params.getOrDefault("deltaSync", "false"));
+        walSync = new WalSync(Boolean.parseBoolean(params.getOrDefault("walSync", "true")),
+                Integer.parseInt(params.getOrDefault("transferBufferSize", "65536")));
+        store = new SnapshotStore(params);
+        storeInterval = Integer.parseInt(params.getOrDefault("snapshotCacheInterval", "10"));
+        headerChangeDetection = "header".equals(params.getOrDefault("changeDetection", "mtime"));
     }
 
-    private Optional<String> getDeviceName(final JadbDevice device) {
+    /**
+     * Stop fetching and delete host copies of device db. If fetch is in
+     * progress files are deleted when it finishes.
+     */
+    public void close() {
+        log.debug("Called");
+        synchronized (this) {
+            closed = true;
+            if (running) {
+                return;
+            }
+        }
+        storeMirror();
+        deleteMirrors();
+    }
+
+    /**
+     * Mirror is copied on every refresh, also when only WAL changed: SQLite
+     * shares WAL index between names of one inode, so hard link to db file of
+     * previous snapshot would read WAL of previous snapshot.
+     */
+    private File createSnapshotFile() throws IOException {
+        final File snapshotFile = createTempFile(null);
+        Files.copy(mirror.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        walSync.copyTo(snapshotFile);
+        log.debug("Db saved to host as {}", snapshotFile.getAbsolutePath());
+        return snapshotFile;
+    }
+
+    /**
+     * Temp file readable only by owner, it is deleted by snapshot close or by
+     * {@link #close()}.
+     */
+    private File createTempFile(final String suffix) throws IOException {
+        return Files.createTempFile("adb-jdbc-" + FilenameUtils.getName(dbName), suffix).toFile();
+    }
+
+    private void deleteMirrors() {
         log.debug("Called");
         try {
-            return Optional.ofNullable(StringUtils
-                    .trim(IOUtils.toString(device.executeShell("getprop ro.product.model"), Charset.defaultCharset())));
-        } catch (final Exception e) {
-            log.error("Fetching data from device with serial [{}] get error [{}]", device.getSerial(), e);
-            return Optional.empty();
+            walSync.clear();
+            if (null != mirror) {
+                Files.deleteIfExists(mirror.toPath());
+            }
+        } catch (final IOException e) {
+            log.error("Unable to delete db mirror with error [{}]", e);
+        }
+    }
+
+    @Override
+    public FetchResult fetch() throws IOException, JadbException, SQLException, InterruptedException {
+        log.debug("Called");
+        if (!begin()) {
+            return FetchResult.UNCHANGED;
+        }
+        try {
+            log.debug("Find device {}", getDeviceIdentifier());
+            final Optional<DeviceRegistry.DeviceInfo> device = getDeviceRegistry().find(getDeviceIdentifier());
+            if (device.isEmpty()) {
+                return FetchResult.DEVICE_ABSENT;
+            }
+            log.debug("Process device with serial {}", device.get().getSerial());
+            return replaceDb(getUpdatedDb(device.get().getDevice(), getPackageName(), dbAbsolutePath))
+                    ? FetchResult.CHANGED
+                    : FetchResult.UNCHANGED;
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Mark work with mirror files in progress, {@link #close()} leaves files to
+     * {@link #end()}.
+     *
+     * @return false if task is closed
+     */
+    private synchronized boolean begin() {
+        if (closed) {
+            return false;
+        }
+        running = true;
+        return true;
+    }
+
+    private void end() {
+        final boolean cleanup;
+        synchronized (this) {
+            running = false;
+            cleanup = closed;
+        }
+        if (cleanup) {
+            storeMirror();
+            deleteMirrors();
         }
     }
 
@@ -73,69 +194,205 @@ public class DataFetchingTask extends AbstractFetchingTask {
             throws IOException, JadbException, FileNotFoundException, InterruptedException, SQLException {
         log.debug("Called for trying to get db from android device with path {}", dbAbsolutePath);
 
-        // 2021-05-01 22:07:31.961255952 +0200
-        final String stateResponse = StringUtils.trim(IOUtils.toString(
-                device.executeShell(String.format("run-as %s stat -c %%y %s", packageName, dbAbsolutePath)),
-                Charset.defaultCharset()));
+        final DeviceDbState state = readState(device, packageName, dbAbsolutePath);
+        final boolean walReset = walSync.isReset(state.getWalSize(), state.getWalHeader());
+
+        final boolean contentChanged = headerChangeDetection
+                ? null == state.getHeader() || !Arrays.equals(state.getHeader(), lastDbHeader)
+                : null == lastModifiedDbDate || !state.getModified().isEqual(lastModifiedDbDate);
+        final boolean dbChanged = contentChanged || state.getSize() != lastDbSize
+                || !device.getSerial().equals(mirrorSerial) || walReset;
+        if (dbChanged) {
+            updateMirror(device, packageName, dbAbsolutePath, state.getSize());
+            lastModifiedDbDate = state.getModified();
+            lastDbSize = state.getSize();
+            lastDbHeader = state.getHeader();
+            mirrorSerial = device.getSerial();
+            unstored = new SnapshotStore.StoredDb(mirrorSerial, lastDbSize, lastModifiedDbDate);
+            unstoredRefreshes++;
+            if (!storedOnce || unstoredRefreshes >= storeInterval) {
+                storeMirror();
+            }
+        }
+        final boolean walChanged = walSync
+                .sync(device, packageName, dbAbsolutePath + "-wal", state.getWalSize(), state.getWalHeader());
+
+        if (dbChanged || walChanged) {
+            return Optional.of(createSnapshotFile());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Read size, modification time and WAL header of db by one shell command.
+     * With {@code changeDetection=header} first {@link SqliteHeader#HEADER_SIZE}
+     * bytes of db are read too: file change counter in header is incremented on
+     * every commit outside of WAL mode, so header detects changes without false
+     * positives of touched files.
+     */
+    private DeviceDbState readState(final JadbDevice device, final String packageName, final String dbAbsolutePath)
+            throws IOException, JadbException {
+        log.debug("Called");
+        final String walPath = dbAbsolutePath + "-wal";
+        final String header = headerChangeDetection
+                ? String.format("; printf \"%s \"; head -c %d %s | base64 -w 0; echo",
+                        HEADER_MARK,
+                        SqliteHeader.HEADER_SIZE,
+                        dbAbsolutePath)
+                : "";
+        final String script = walSync.isEnabled()
+                ? String.format(
+                        "stat -c \"%%s %%y\" %s%s; stat -c %%s %s 2>/dev/null && head -c %d %s | base64 -w 0",
+                        dbAbsolutePath,
+                        header,
+                        walPath,
+                        WalSync.HEADER_SIZE,
+                        walPath)
+                : String.format("stat -c \"%%s %%y\" %s%s", dbAbsolutePath, header);
+        // 1437696 2021-05-01 22:07:31.961255952 +0200
+        // header U1FMaXRl... (db header in base64, only for header change detection)
+        // 4152 (WAL size, only if WAL exists)
+        // N8AmggAt... (WAL header in base64, only if WAL exists)
+        final List<String> stateResponse = IOUtils
+                .readLines(device.executeShell(String.format("run-as %s sh -c '%s'", packageName, script)),
+                        Charset.defaultCharset())
+                .stream()
+                .map(StringUtils::trim)
+                .filter(StringUtils::isNotBlank)
+                .collect(Collectors.toList());
 
         log.debug("Loaded db file last state info {}", stateResponse);
 
-        final OffsetDateTime readedModifiedDbDate = OffsetDateTime.parse(stateResponse,
-                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.nnnnnnnnn x"));
-
-        if (null == lastModifiedDbDate || !readedModifiedDbDate.isEqual(lastModifiedDbDate)) {
-            final String dbBase64 = StringUtils.trim(IOUtils.toString(
-                    device.executeShell(String.format("run-as %s base64 -w 0 %s", packageName, dbAbsolutePath)),
-                    Charset.defaultCharset()));
-            log.debug("Db loaded from android device");
-            final File tmpDbFile = File.createTempFile(dbName, null);
-            try (final FileOutputStream out = new FileOutputStream(tmpDbFile)) {
-                out.write(Base64.getDecoder().decode(dbBase64));
+        byte[] dbHeader = null;
+        for (final Iterator<String> lines = stateResponse.iterator(); lines.hasNext();) {
+            final String line = lines.next();
+            if (line.startsWith(HEADER_MARK)) {
+                dbHeader = Base64.getDecoder().decode(line.substring(HEADER_MARK.length()).trim());
+                lines.remove();
             }
-            log.debug("Db saved to host as {}", tmpDbFile.getAbsolutePath());
-            return Optional.of(tmpDbFile);
         }
-        return Optional.empty();
+        final String[] state = stateResponse.isEmpty() ? new String[0] : stateResponse.get(0).split(" ", 2);
+        if (state.length != 2) {
+            throw new IllegalArgumentException(String.format("Unable to parse db file state %s", stateResponse));
+        }
+        long walSize = -1;
+        byte[] walHeader = null;
+        if (stateResponse.size() == 3 && StringUtils.isNumeric(stateResponse.get(1))) {
+            walSize = Long.parseLong(stateResponse.get(1));
+            walHeader = Base64.getDecoder().decode(stateResponse.get(2));
+            if (walHeader.length < WalSync.HEADER_SIZE) {
+                walHeader = null;
+            }
+        }
+        final long size = Long.parseLong(state[0]);
+        if (null != dbHeader) {
+            log.debug("Db header {}", SqliteHeader.parse(dbHeader, size));
+        }
+        return new DeviceDbState(size,
+                OffsetDateTime.parse(state[1], DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.nnnnnnnnn x")),
+                dbHeader,
+                walSize,
+                walHeader);
     }
 
-    private void replaceDb(final Optional<File> newDbFile) throws InterruptedException, SQLException {
+    /**
+     * @return first {@link SqliteHeader#HEADER_SIZE} bytes of host copy of db
+     */
+    private byte[] readHeader(final File dbFile) throws IOException {
+        try (InputStream in = Files.newInputStream(dbFile.toPath())) {
+            return in.readNBytes(SqliteHeader.HEADER_SIZE);
+        }
+    }
+
+    private boolean replaceDb(final Optional<File> newDbFile) throws SQLException {
         log.debug("Called");
         if (newDbFile.isPresent()) {
-            connectionHolder.acquire();
-            connectionHolder.close();
-            if (null != lastDbCopy && lastDbCopy.exists()) {
-                log.debug("Old db file copy delete {}", lastDbCopy.getAbsolutePath());
-                lastDbCopy.delete();
-            }
-            lastDbCopy = newDbFile.get();
-            connectionHolder.setConnection(DriverManager.getConnection("jdbc:sqlite:" + lastDbCopy.getAbsolutePath()));
-            connectionHolder.release();
+            connectionHolder.publish(Snapshot.open(newDbFile.get()));
+            log.debug("Old db replaced");
+            return true;
         }
-        log.debug("Old db replaced");
+        return false;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Publish snapshot of db stored by previous run, it is used until first
+     * fetch revalidates it against device.
+     *
+     * @return true if stored db found and published
+     */
+    public boolean restoreStored() throws IOException, SQLException {
         log.debug("Called");
+        if (!begin()) {
+            return false;
+        }
         try {
-            log.debug("Get list of devices");
-            final List<JadbDevice> devices = getJadb().getDevices();
-            for (final JadbDevice device : devices) {
-                log.debug("Process device with serial {}", device.getSerial());
-                if (getDeviceIdentifier().equals(device.getSerial())
-                        || getDeviceIdentifier().equals(getDeviceName(device).orElse(null))) {
-                    replaceDb(getUpdatedDb(device,
-                            getPackageName(),
-                            getParams().getOrDefault("applicationDataRootPath", "/data/data/") + getPackageName()
-                                    + dbName));
-                }
-            }
-        } catch (IOException | JadbException | SQLException e) {
-            throw new IllegalStateException("Unable to get data from device:", e);
-        } catch (final InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IllegalStateException("Runnable thread interrupted:", e);
+            return restore();
+        } finally {
+            end();
         }
     }
 
+    private boolean restore() throws IOException, SQLException {
+        final File storedMirror = createTempFile(".mirror");
+        final Optional<SnapshotStore.StoredDb> stored = store
+                .load(getDeviceIdentifier(), getPackageName(), dbAbsolutePath, storedMirror);
+        if (stored.isEmpty()) {
+            Files.deleteIfExists(storedMirror.toPath());
+            return false;
+        }
+        mirror = storedMirror;
+        mirrorSerial = stored.get().getSerial();
+        lastDbSize = stored.get().getSize();
+        lastModifiedDbDate = stored.get().getModified();
+        lastDbHeader = readHeader(mirror);
+        storedOnce = true;
+        if (deltaSyncEnabled) {
+            deltaSync.buildIndex(mirror);
+        }
+        replaceDb(Optional.of(createSnapshotFile()));
+        log.info("Stored copy of db {} opened, it will be revalidated by next fetch", dbAbsolutePath);
+        return true;
+    }
+
+    /**
+     * Save mirror to {@link SnapshotStore}. Copy and hash of whole db is
+     * expensive, so mirror is stored on first load, then once per
+     * {@code snapshotCacheInterval} refreshes and on close.
+     */
+    private void storeMirror() {
+        if (null == unstored || null == mirror) {
+            return;
+        }
+        log.debug("Called");
+        store.save(getDeviceIdentifier(), getPackageName(), dbAbsolutePath, unstored, mirror);
+        unstored = null;
+        unstoredRefreshes = 0;
+        storedOnce = true;
+    }
+
+    private void updateMirror(final JadbDevice device, final String packageName, final String dbAbsolutePath,
+            final long size) throws IOException, JadbException {
+        log.debug("Called");
+        if (null == mirror) {
+            mirror = createTempFile(".mirror");
+        } else if (deltaSyncEnabled && deltaSync.sync(device, packageName, dbAbsolutePath, size, mirror)) {
+            log.debug("Db mirror patched with changed chunks");
+            return;
+        }
+        final long transferred = transfer.pull(device, packageName, dbAbsolutePath, size, mirror);
+        log.debug("Db mirror with size {} fully loaded, transferred {} bytes", size, transferred);
+        if (deltaSyncEnabled) {
+            deltaSync.buildIndex(mirror);
+        }
+    }
+
+    @Value
+    private static class DeviceDbState {
+        long size;
+        OffsetDateTime modified;
+        byte[] header;
+        long walSize;
+        byte[] walHeader;
+    }
+
 }
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Incremental synchronization of host mirror of device file. Device computes
+ * md5 of every chunk of file in one shell call, only chunks with checksum
+ * different from local index are pulled and patched into mirror.
+ *
+ * Chunk size (jdbc url parameter {@code deltaChunkSize}) should be multiple of
+ * SQLite page size, so changed pages are never split between chunks.
+ */
+@Slf4j
+public class DeltaSync {
+    private static final int CHUNKS_PER_PULL = 512;
+
+    private final int chunkSize;
+    private final List<String> index = new ArrayList<>();
+
+    public DeltaSync(@NonNull final Map<String, String> params) {
+        log.debug("Called");
+        chunkSize = Integer.parseInt(params.getOrDefault("deltaChunkSize", "1048576"));
+    }
+
+    /**
+     * Rebuild checksums index from full copy of file.
+     *
+     * @param mirror host copy of device file
+     */
+    public void buildIndex(@NonNull final File mirror) throws IOException {
+        log.debug("Called for {}", mirror);
+        index.clear();
+        final ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        try (FileChannel channel = FileChannel.open(mirror.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            final long size = channel.size();
+            while (position < size) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) <= 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                index.add(md5(buffer));
+                position += chunkSize;
+            }
+        }
+        log.debug("Index with {} chunks built", index.size());
+    }
+
+    private long chunkLength(final long size, final int chunk) {
+        return Math.min(chunkSize, size - (long) chunk * chunkSize);
+    }
+
+    private int chunksCount(final long size) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    private String md5(final ByteBuffer buffer) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(buffer);
+            return String.format("%032x", new BigInteger(1, digest.digest()));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    private void pullChunks(final JadbDevice device, final String packageName, final String path, final long size,
+            final List<Integer> chunks, final FileChannel mirror) throws IOException, JadbException {
+        log.debug("Called for {} chunks", chunks.size());
+        final ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        for (int from = 0; from < chunks.size(); from += CHUNKS_PER_PULL) {
+            final List<Integer> part = chunks.subList(from, Math.min(chunks.size(), from + CHUNKS_PER_PULL));
+            final String script = String.format(
+                    "for i in %s; do dd if=%s bs=%d skip=$i count=1 2>/dev/null; done",
+                    part.stream().map(String::valueOf).collect(Collectors.joining(" ")),
+                    path,
+                    chunkSize);
+            try (InputStream in = device.execute(String.format("run-as %s sh -c '%s'", packageName, script));
+                    ReadableByteChannel source = Channels.newChannel(in)) {
+                for (final int chunk : part) {
+                    buffer.clear();
+                    buffer.limit((int) chunkLength(size, chunk));
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) == -1) {
+                            throw new IOException(String.format("Unexpected end of stream at chunk %d", chunk));
+                        }
+                    }
+                    buffer.flip();
+                    final String checksum = md5(buffer.duplicate());
+                    index.set(chunk, null);
+                    long position = (long) chunk * chunkSize;
+                    while (buffer.hasRemaining()) {
+                        position += mirror.write(buffer, position);
+                    }
+                    index.set(chunk, checksum);
+                }
+            }
+        }
+    }
+
+    private List<String> readRemoteIndex(final JadbDevice device, final String packageName, final String path,
+            final long size) throws IOException, JadbException {
+        log.debug("Called");
+        final String script = String.format(
+                "i=0; while [ $i -lt %d ]; do dd if=%s bs=%d skip=$i count=1 2>/dev/null | md5sum; i=$((i+1)); done",
+                chunksCount(size),
+                path,
+                chunkSize);
+        return IOUtils
+                .readLines(device.executeShell(String.format("run-as %s sh -c '%s'", packageName, script)),
+                        Charset.defaultCharset())
+                .stream()
+                .map(StringUtils::trim)
+                .filter(StringUtils::isNotBlank)
+                .map(l -> StringUtils.substringBefore(l, " "))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Patch changed chunks of device file into mirror.
+     *
+     * @param device      device with application
+     * @param packageName debuggable application package
+     * @param path        absolute path of file on device
+     * @param size        current size of file on device
+     * @param mirror      host copy of device file with actual index
+     * @return false if too many chunks changed and full pull is cheaper
+     */
+    public boolean sync(@NonNull final JadbDevice device, @NonNull final String packageName,
+            @NonNull final String path, final long size, @NonNull final File mirror)
+            throws IOException, JadbException {
+        log.debug("Called for {} with size {}", path, size);
+        final List<String> remoteIndex = readRemoteIndex(device, packageName, path, size);
+        if (remoteIndex.size() != chunksCount(size)) {
+            throw new IOException(String.format("Device returned %d checksums for %d chunks",
+                    remoteIndex.size(),
+                    chunksCount(size)));
+        }
+        final List<Integer> changed = new ArrayList<>();
+        for (int chunk = 0; chunk < remoteIndex.size(); chunk++) {
+            if (chunk >= index.size() || !Objects.equals(index.get(chunk), remoteIndex.get(chunk))) {
+                changed.add(chunk);
+            }
+        }
+        log.debug("Changed {} of {} chunks", changed.size(), remoteIndex.size());
+        if ((long) changed.size() * 2 > remoteIndex.size() && remoteIndex.size() > 1) {
+            return false;
+        }
+        while (index.size() < remoteIndex.size()) {
+            index.add(null);
+        }
+        while (index.size() > remoteIndex.size()) {
+            index.remove(index.size() - 1);
+        }
+        try (FileChannel channel = FileChannel.open(mirror.toPath(), StandardOpenOption.WRITE)) {
+            pullChunks(device, packageName, path, size, changed, channel);
+            channel.truncate(size);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+
+/**
+ * Copies files from application private storage to host without keeping them
+ * in heap. Bytes are moved from adb socket to {@link FileChannel} through one
+ * fixed size buffer, so memory usage does not depend on file size.
+ *
+ * Supported transfer modes (jdbc url parameter {@code transfer}):
+ * <ul>
+ * <li>{@code exec} - raw {@code exec:} stream of {@code run-as <pkg> cat}</li>
+ * <li>{@code sync} - {@code run-as <pkg> cat} to readable temp file on device
+ * and sync RECV of this file</li>
+ * <li>{@code base64} - old {@code base64} over shell, decoded as stream</li>
+ * <li>{@code auto} - {@code exec} with fallback to {@code base64}</li>
+ * </ul>
+ *
+ * Raw stream can be compressed on device by {@code gzip} (jdbc url parameter
+ * {@code compression}: {@code auto}, {@code gzip} or {@code none}). In
+ * {@code auto} mode compression is used when expected time of compressed
+ * transfer, estimated from measured link throughput, device compression speed
+ * and compression ratio of previous transfers, is less than time of raw
+ * transfer.
+ */
+@Slf4j
+public class DeviceFileTransfer {
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final String DEVICE_TMP_DIR = "/data/local/tmp/";
+    private static final long MIN_COMPRESSED_SIZE = 1024 * 1024;
+    private static final double DEFAULT_LINK_RATE = 20_000;
+    private static final double DEFAULT_COMPRESSION_RATIO = 3;
+    private static final double SMOOTHING = 0.5;
+
+    private final String mode;
+    private final int bufferSize;
+    private final String compression;
+    private Boolean gzipAvailable;
+    // bytes per ms
+    private double linkRate = DEFAULT_LINK_RATE;
+    // bytes per ms, 0 until first compressed transfer
+    private double gzipRate;
+    private double gzipRatio = DEFAULT_COMPRESSION_RATIO;
+    @Getter
+    private TransferStats lastStats;
+
+    public DeviceFileTransfer(@NonNull final Map<String, String> params) {
+        log.debug("Called");
+        mode = params.getOrDefault("transfer", "auto");
+        bufferSize = Integer.parseInt(params.getOrDefault("transferBufferSize", "65536"));
+        compression = params.getOrDefault("compression", "auto");
+    }
+
+    private long copy(final InputStream in, final File target) throws IOException {
+        log.debug("Called");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long written = 0;
+        try (ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel destination = FileChannel.open(target.toPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += destination.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return written;
+    }
+
+    private boolean isCompressed(final JadbDevice device, final long size) throws IOException, JadbException {
+        log.debug("Called");
+        switch (compression) {
+        case "gzip":
+            return true;
+        case "none":
+            return false;
+        default:
+            if (size < MIN_COMPRESSED_SIZE || !isGzipAvailable(device)) {
+                return false;
+            }
+            if (gzipRate == 0) {
+                return true;
+            }
+            final double rawTime = size / linkRate;
+            final double compressedTime = Math.max(size / gzipRate, size / gzipRatio / linkRate);
+            log.debug("Expected raw transfer time {} ms, compressed {} ms", rawTime, compressedTime);
+            return compressedTime < rawTime;
+        }
+    }
+
+    private boolean isGzipAvailable(final JadbDevice device) throws IOException, JadbException {
+        if (null == gzipAvailable) {
+            gzipAvailable = StringUtils.isNotBlank(
+                    IOUtils.toString(device.executeShell("command -v gzip"), Charset.defaultCharset()));
+            log.debug("Gzip available on device {}", gzipAvailable);
+        }
+        return gzipAvailable;
+    }
+
+    private boolean isValid(final File target, final long written, final long expectedSize) throws IOException {
+        log.debug("Called");
+        if (written != expectedSize) {
+            log.debug("Transferred {} bytes but expected {}", written, expectedSize);
+            return false;
+        }
+        if (expectedSize < SQLITE_MAGIC.length) {
+            return true;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(SQLITE_MAGIC.length);
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        }
+        return Arrays.equals(header.array(), SQLITE_MAGIC);
+    }
+
+    /**
+     * Copy file from device to target on host.
+     *
+     * @param device       device with application
+     * @param packageName  debuggable application package
+     * @param path         absolute path of file on device
+     * @param expectedSize file size from device, used for transfer validation
+     * @param target       host file, will be overwritten
+     * @return transferred bytes count
+     */
+    public long pull(@NonNull final JadbDevice device, @NonNull final String packageName,
+            @NonNull final String path, final long expectedSize, @NonNull final File target)
+            throws IOException, JadbException {
+        log.debug("Called with mode {} for {}", mode, path);
+        switch (mode) {
+        case "base64":
+            return pullBase64(device, packageName, path, target);
+        case "sync":
+            return pullSync(device, packageName, path, target);
+        case "exec":
+            return pullExec(device, packageName, path, target, isCompressed(device, expectedSize));
+        default:
+            try {
+                final long written = pullExec(device,
+                        packageName,
+                        path,
+                        target,
+                        isCompressed(device, expectedSize));
+                if (isValid(target, written, expectedSize)) {
+                    return written;
+                }
+                log.warn("Raw stream of {} is broken, fallback to base64 transfer", path);
+            } catch (final IOException | JadbException e) {
+                log.warn("Raw stream of {} failed with error [{}], fallback to base64 transfer", path, e);
+            }
+            return pullBase64(device, packageName, path, target);
+        }
+    }
+
+    private long pullBase64(final JadbDevice device, final String packageName, final String path,
+            final File target) throws IOException, JadbException {
+        log.debug("Called");
+        try (InputStream in = Base64.getMimeDecoder()
+                .wrap(device.executeShell(String.format("run-as %s base64 -w 0 %s", packageName, path)))) {
+            return copy(in, target);
+        }
+    }
+
+    private long pullExec(final JadbDevice device, final String packageName, final String path,
+            final File target, final boolean compressed) throws IOException, JadbException {
+        log.debug("Called with compression {}", compressed);
+        final long started = System.currentTimeMillis();
+        final long written;
+        final long wireBytes;
+        try (CountingInputStream wire = new CountingInputStream(device.execute(
+                String.format(compressed ? "run-as %s gzip -c %s" : "run-as %s cat %s", packageName, path)));
+                InputStream in = compressed ? new GZIPInputStream(wire, bufferSize) : wire) {
+            written = copy(in, target);
+            wireBytes = wire.getByteCount();
+        }
+        record(new TransferStats(compressed ? "gzip" : "none",
+                written,
+                wireBytes,
+                Math.max(1, System.currentTimeMillis() - started)));
+        return written;
+    }
+
+    private void record(final TransferStats stats) {
+        log.info("Transferred {} bytes as {} bytes with codec {} in {} ms, compression ratio {}",
+                stats.getFileBytes(),
+                stats.getWireBytes(),
+                stats.getCodec(),
+                stats.getMillis(),
+                stats.getRatio());
+        lastStats = stats;
+        if (stats.getFileBytes() < MIN_COMPRESSED_SIZE) {
+            return;
+        }
+        if ("gzip".equals(stats.getCodec())) {
+            gzipRatio = smooth(gzipRatio, stats.getRatio());
+            gzipRate = smooth(gzipRate, (double) stats.getFileBytes() / stats.getMillis());
+        } else {
+            linkRate = smooth(linkRate, (double) stats.getWireBytes() / stats.getMillis());
+        }
+    }
+
+    private double smooth(final double current, final double measured) {
+        return 0 == current ? measured : current * (1 - SMOOTHING) + measured * SMOOTHING;
+    }
+
+    private long pullSync(final JadbDevice device, final String packageName, final String path,
+            final File target) throws IOException, JadbException {
+        log.debug("Called");
+        final String readablePath = DEVICE_TMP_DIR + target.getName();
+        try {
+            IOUtils.toString(
+                    device.executeShell(String.format("run-as %s cat %s > %s", packageName, path, readablePath)),
+                    Charset.defaultCharset());
+            try (OutputStream out = Channels.newOutputStream(FileChannel.open(target.toPath(),
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING))) {
+                device.pull(new RemoteFile(readablePath), out);
+            }
+            return target.length();
+        } finally {
+            IOUtils.toString(device.executeShell("rm -f " + readablePath), Charset.defaultCharset());
+        }
+    }
+}
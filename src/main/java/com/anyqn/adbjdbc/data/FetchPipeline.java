@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+import com.anyqn.adbjdbc.AdaptiveScheduler;
+import com.anyqn.adbjdbc.ConnectionHolder;
+import com.anyqn.adbjdbc.DeviceRegistry;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One fetch loop and one snapshot of device db, shared by all connections to
+ * this db.
+ */
+@Slf4j
+public class FetchPipeline {
+    @Getter
+    private final ConnectionHolder connectionHolder = new ConnectionHolder();
+    private final DataFetchingTask dataFetchingTask;
+    private final AdaptiveScheduler scheduler;
+    private final DeviceRegistry deviceRegistry;
+    private final Runnable wakeUp;
+    private QueryResultCache resultCache;
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private int references;
+
+    public FetchPipeline(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final String dbPath, @NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        log.debug("Called trying to start with package name {} and db name {}", packageName, dbPath);
+        this.deviceRegistry = deviceRegistry;
+        dataFetchingTask = new DataFetchingTask(deviceIdentifier,
+                packageName,
+                dbPath,
+                params,
+                connectionHolder,
+                deviceRegistry);
+        scheduler = new AdaptiveScheduler(dataFetchingTask, params);
+        wakeUp = scheduler::wakeUp;
+    }
+
+    /**
+     * Cache of query results shared by all connections to db, it is created
+     * with limits of first connection which enables query cache.
+     */
+    public synchronized QueryResultCache getResultCache(@NonNull final Map<String, String> params) {
+        log.debug("Called");
+        if (null == resultCache) {
+            resultCache = createResultCache(params);
+        }
+        return resultCache;
+    }
+
+    /**
+     * @return query result cache by connection params
+     */
+    public static QueryResultCache createResultCache(@NonNull final Map<String, String> params) {
+        return new QueryResultCache(Integer.parseInt(params.getOrDefault("queryCacheSize", "64")),
+                Long.parseLong(params.getOrDefault("queryCacheRows", "100000")));
+    }
+
+    private void restoreStored() {
+        try {
+            dataFetchingTask.restoreStored();
+        } catch (final IOException | SQLException e) {
+            log.warn("Unable to open stored db copy with error [{}]", e);
+        }
+    }
+
+    /**
+     * Start fetching. Db stored by previous run is copied, checked and opened
+     * by scheduler thread before first fetch, so caller is not blocked by copy
+     * of big db.
+     */
+    public void start(final long initialDelay) {
+        log.debug("Called");
+        deviceRegistry.addListener(wakeUp);
+        scheduler.execute(this::restoreStored);
+        scheduler.start(initialDelay);
+    }
+
+    public void stop() {
+        log.debug("Called");
+        deviceRegistry.removeListener(wakeUp);
+        scheduler.stop();
+        dataFetchingTask.close();
+        connectionHolder.close();
+        synchronized (this) {
+            if (null != resultCache) {
+                resultCache.clear();
+            }
+        }
+    }
+}
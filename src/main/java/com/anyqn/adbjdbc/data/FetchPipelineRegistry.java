@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import com.anyqn.adbjdbc.DeviceRegistry;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Driver wide registry of fetch pipelines keyed by device serial, package and
+ * db path. Pipeline is started by first connection to db and stopped when last
+ * connection is closed. Fetching parameters of first connection are used.
+ */
+@Slf4j
+public class FetchPipelineRegistry {
+    private final Map<PipelineKey, FetchPipeline> pipelines = new HashMap<>();
+
+    /**
+     * Device model is resolved to serial before lookup, so connections by model
+     * and by serial share pipeline. Device which is not attached yet is keyed
+     * by identifier as is.
+     */
+    public FetchPipeline acquire(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final String dbPath, @NonNull final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        log.debug("Called");
+        String serial = deviceIdentifier;
+        try {
+            final Optional<DeviceRegistry.DeviceInfo> device = deviceRegistry.find(deviceIdentifier);
+            if (device.isPresent()) {
+                serial = device.get().getSerial();
+            }
+        } catch (final IOException | JadbException e) {
+            log.warn("Unable to resolve serial of device {} with error [{}]", deviceIdentifier, e);
+        }
+        return acquirePipeline(serial, packageName, dbPath, params, deviceRegistry);
+    }
+
+    private synchronized FetchPipeline acquirePipeline(final String deviceIdentifier, final String packageName,
+            final String dbPath, final Map<String, String> params, final DeviceRegistry deviceRegistry)
+            throws SQLException {
+        final PipelineKey key = new PipelineKey(deviceIdentifier, packageName, dbPath);
+        FetchPipeline pipeline = pipelines.get(key);
+        if (null == pipeline) {
+            log.debug("Start new fetch pipeline for {}", key);
+            pipeline = new FetchPipeline(deviceIdentifier, packageName, dbPath, params, deviceRegistry);
+            pipeline.start(Long.valueOf(params.getOrDefault("initialDelay", "0")));
+            pipelines.put(key, pipeline);
+        }
+        pipeline.setReferences(pipeline.getReferences() + 1);
+        return pipeline;
+    }
+
+    public synchronized void release(@NonNull final FetchPipeline pipeline) {
+        log.debug("Called");
+        pipeline.setReferences(pipeline.getReferences() - 1);
+        if (pipeline.getReferences() == 0) {
+            pipelines.values().remove(pipeline);
+            pipeline.stop();
+        }
+    }
+
+    @Value
+    private static class PipelineKey {
+        String deviceIdentifier;
+        String packageName;
+        String dbPath;
+    }
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import com.anyqn.adbjdbc.Snapshot;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Results of queries of all connections to one db, keyed by normalized sql,
+ * parameters and options of statement. Results belong to one snapshot
+ * generation, all results are dropped when newer snapshot appears. Cache is
+ * bounded by count of results and by total count of rows, least recently used
+ * results are evicted first. Result is recorded while caller reads it, result
+ * with more than {@code maxRows} rows or not read to the end is not cached.
+ */
+@Slf4j
+public class QueryResultCache {
+    private static final Set<String> MODIFICATION_METHODS = Set
+            .of("insertRow", "deleteRow", "cancelRowUpdates", "moveToInsertRow");
+
+    private final int maxEntries;
+    private final long maxRows;
+    private final Map<List<Object>, CachedRowSet> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation;
+    private long rows;
+
+    public QueryResultCache(final int maxEntries, final long maxRows) {
+        log.debug("Called");
+        this.maxEntries = maxEntries;
+        this.maxRows = maxRows;
+    }
+
+    public synchronized void clear() {
+        log.debug("Called");
+        results.clear();
+        rows = 0;
+    }
+
+    private void evict() {
+        final Iterator<Entry<List<Object>, CachedRowSet>> iterator = results.entrySet().iterator();
+        while ((results.size() > maxEntries || rows > maxRows) && iterator.hasNext()) {
+            rows -= iterator.next().getValue().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @param statement statement returned by {@link ResultSet#getStatement()}
+     * @return read only copy of cached result with own cursor or null
+     */
+    public synchronized ResultSet get(@NonNull final Snapshot snapshot, @NonNull final List<Object> key,
+            final Statement statement) throws SQLException {
+        log.debug("Called");
+        if (!isActual(snapshot)) {
+            return null;
+        }
+        final CachedRowSet result = results.get(key);
+        if (null == result) {
+            return null;
+        }
+        log.debug("Query result of generation {} taken from cache", generation);
+        return replay(result, statement);
+    }
+
+    private boolean isActual(final Snapshot snapshot) {
+        if (snapshot.getGeneration() > generation) {
+            log.debug("Drop cached query results of generation {}", generation);
+            clear();
+            generation = snapshot.getGeneration();
+        }
+        return snapshot.getGeneration() == generation;
+    }
+
+    /**
+     * Copy column descriptions, so recorded rows can be replayed after source
+     * result is closed.
+     */
+    private static RowSetMetaData copyMetaData(final ResultSetMetaData source) throws SQLException {
+        final RowSetMetaData copy = new RowSetMetaDataImpl();
+        final int columns = source.getColumnCount();
+        copy.setColumnCount(columns);
+        for (int i = 1; i <= columns; i++) {
+            copy.setColumnName(i, source.getColumnName(i));
+            copy.setColumnLabel(i, source.getColumnLabel(i));
+            copy.setColumnType(i, source.getColumnType(i));
+            copy.setColumnTypeName(i, source.getColumnTypeName(i));
+            copy.setTableName(i, source.getTableName(i));
+            copy.setNullable(i, source.isNullable(i));
+            copy.setAutoIncrement(i, source.isAutoIncrement(i));
+            copy.setCaseSensitive(i, source.isCaseSensitive(i));
+            copy.setSearchable(i, true);
+        }
+        return copy;
+    }
+
+    /**
+     * Result which is returned to caller as is and is recorded while caller
+     * reads it. When caller reaches end of result, recorded rows are
+     * remembered. Recording stops after {@code maxRows} rows, so query is run
+     * only once and memory is bounded for any result size.
+     *
+     * @param resultSet result of query
+     * @param statement statement returned by {@link ResultSet#getStatement()}
+     * @return result with same rows as given one
+     */
+    public ResultSet record(@NonNull final Snapshot snapshot, @NonNull final List<Object> key,
+            @NonNull final ResultSet resultSet, final Statement statement) throws SQLException {
+        log.debug("Called");
+        final RowSetMetaData metaData = copyMetaData(resultSet.getMetaData());
+        final int columns = metaData.getColumnCount();
+        final List<List<Object[]>> recorded = new ArrayList<>();
+        recorded.add(new ArrayList<>());
+        return (ResultSet) Proxy.newProxyInstance(QueryResultCache.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                (proxy, method, args) -> {
+                    if ("getStatement".equals(method.getName())) {
+                        return statement;
+                    }
+                    final Object response;
+                    try {
+                        response = method.invoke(resultSet, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    final List<Object[]> rows = recorded.get(0);
+                    if (!"next".equals(method.getName()) || null == rows) {
+                        return response;
+                    }
+                    if (!(Boolean) response) {
+                        recorded.set(0, null);
+                        store(snapshot, key, metaData, rows);
+                    } else if (rows.size() >= maxRows) {
+                        log.debug("Query result with more than {} rows is not cached", maxRows);
+                        recorded.set(0, null);
+                    } else {
+                        final Object[] row = new Object[columns];
+                        for (int i = 0; i < columns; i++) {
+                            row[i] = resultSet.getObject(i + 1);
+                        }
+                        rows.add(row);
+                    }
+                    return response;
+                });
+    }
+
+    private ResultSet replay(final CachedRowSet result, final Statement statement) throws SQLException {
+        final ResultSet copy = result.createShared();
+        final boolean[] closed = { false };
+        return (ResultSet) Proxy.newProxyInstance(QueryResultCache.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                (proxy, method, args) -> {
+                    final String name = method.getName();
+                    switch (name) {
+                    case "close":
+                        // close of shared copy releases rows of cached result
+                        closed[0] = true;
+                        return null;
+                    case "isClosed":
+                        return closed[0];
+                    case "getStatement":
+                        return statement;
+                    case "getConcurrency":
+                        return ResultSet.CONCUR_READ_ONLY;
+                    default:
+                        break;
+                    }
+                    if (closed[0]) {
+                        throw new SQLException("ResultSet is closed");
+                    }
+                    if (name.startsWith("update") || MODIFICATION_METHODS.contains(name)) {
+                        throw new SQLFeatureNotSupportedException("Cached query result is read only");
+                    }
+                    try {
+                        return method.invoke(copy, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private void store(final Snapshot snapshot, final List<Object> key, final RowSetMetaData metaData,
+            final List<Object[]> recordedRows) throws SQLException {
+        final CachedRowSet result = RowSetProvider.newFactory().createCachedRowSet();
+        result.setMetaData(metaData);
+        for (final Object[] row : recordedRows) {
+            result.moveToInsertRow();
+            for (int i = 0; i < row.length; i++) {
+                result.updateObject(i + 1, row[i]);
+            }
+            result.insertRow();
+        }
+        result.moveToCurrentRow();
+        result.beforeFirst();
+        synchronized (this) {
+            if (isActual(snapshot)) {
+                final CachedRowSet previous = results.put(key, result);
+                rows += result.size() - (null == previous ? 0 : previous.size());
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Collapse whitespace outside of quoted strings and identifiers, so
+     * queries which differ only by formatting share cached result.
+     */
+    public static String normalize(@NonNull final String sql) {
+        final StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (final char c : sql.trim().toCharArray()) {
+            if (0 == quote && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            if (0 == quote && (c == '\'' || c == '"' || c == '`')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.anyqn.adbjdbc.DeviceRegistry;
+
+import lombok.NonNull;
+import lombok.experimental.Delegate;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+
+/**
+ * Connection of remote execution mode: db is not copied to host, every query
+ * is run by sqlite3 on device as application user and rows are streamed back
+ * in {@code -quote} format. Only queries are supported. Metadata is served by
+ * copy of db schema in host in-memory db (see {@link RemoteSchema}), other
+ * calls are served by this in-memory db too.
+ */
+@Slf4j
+public class RemoteDataConnection implements java.sql.Connection {
+    private static final String BUNDLED = "bundled";
+    private static final String PUSH_PATH = "/data/local/tmp/adb-jdbc-sqlite3";
+    private static final int MIN_MINOR_VERSION = 22;
+    private static final Pattern VERSION = Pattern.compile("^3\\.(\\d+)\\.\\d+");
+
+    private final String deviceName;
+    private final String packageName;
+    private final String applicationDataPath;
+    private final String dbAbsolutePath;
+    private final String sqlite3Binary;
+    private final DeviceRegistry deviceRegistry;
+    private final int fetchSize;
+    private String sqlite3;
+    private String installedSerial;
+    private final RemoteSchema schema;
+    @Delegate
+    private final Connection localConnection;
+
+    public RemoteDataConnection(@NonNull final String deviceName, @NonNull final String packageName,
+            @NonNull final String dbName, final Map<String, String> params,
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        log.debug("Called");
+        this.deviceName = deviceName;
+        this.packageName = packageName;
+        this.deviceRegistry = deviceRegistry;
+        applicationDataPath = params.getOrDefault("applicationDataRootPath", "/data/data/") + packageName;
+        dbAbsolutePath = applicationDataPath + dbName;
+        sqlite3 = params.getOrDefault("sqlite3", "sqlite3");
+        sqlite3Binary = params.get("sqlite3Binary");
+        fetchSize = Integer.parseInt(params.getOrDefault("remoteFetchSize", "100"));
+        checkVersion();
+        schema = new RemoteSchema(this::query);
+        localConnection = schema.getConnection();
+    }
+
+    /**
+     * Fail on connect if sqlite3 is absent on device or too old for
+     * {@code -quote} output mode.
+     */
+    private void checkVersion() throws SQLException {
+        log.debug("Called");
+        final String output;
+        try (InputStream in = execute(String.format("%s -version", shellQuote(sqlite3)))) {
+            output = StringUtils.trim(IOUtils.toString(in, Charset.defaultCharset()));
+        } catch (final IOException e) {
+            throw new SQLException("Unable to run sqlite3 on device", e);
+        }
+        final Matcher matcher = VERSION.matcher(output);
+        if (!matcher.find()) {
+            throw new SQLException(String.format("Unable to run sqlite3 on device: %s", output));
+        }
+        if (Integer.parseInt(matcher.group(1)) < MIN_MINOR_VERSION) {
+            throw new SQLException(String.format(
+                    "sqlite3 %s on device does not support -quote mode, set sqlite3Binary to push newer one",
+                    output));
+        }
+        log.debug("Device sqlite3 version {}", output);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        log.debug("Called");
+        schema.close();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        log.debug("Called");
+        return schema.getMetaData(this);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.create(this, this::query, schema::describe, fetchSize);
+    }
+
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.create(this, this::query, schema::describe, fetchSize);
+    }
+
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency,
+            final int resultSetHoldability) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.create(this, this::query, schema::describe, fetchSize);
+    }
+
+    /**
+     * Run shell script on device as application user.
+     *
+     * @return output of script with errors
+     */
+    private InputStream execute(final String script) throws SQLException {
+        try {
+            final JadbDevice device = deviceRegistry.find(deviceName)
+                    .orElseThrow(() -> new SQLException(String.format("Device %s is not found", deviceName)))
+                    .getDevice();
+            install(device);
+            return device.executeShell(String.format("run-as %s sh -c %s", packageName, shellQuote(script)));
+        } catch (final IOException | JadbException e) {
+            throw new SQLException(String.format("Unable to execute command on device %s", deviceName), e);
+        }
+    }
+
+    /**
+     * Push sqlite3 from host file or driver resources
+     * {@code sqlite3/<abi>/sqlite3} and copy it to application data dir, where
+     * application user can run it. It is done once per device.
+     */
+    private void install(final JadbDevice device) throws IOException, JadbException, SQLException {
+        if (null == sqlite3Binary || device.getSerial().equals(installedSerial)) {
+            return;
+        }
+        log.debug("Called");
+        final InputStream source;
+        final long lastModified;
+        if (BUNDLED.equals(sqlite3Binary)) {
+            final String abi = deviceRegistry.find(deviceName)
+                    .flatMap(info -> info.getProperty("ro.product.cpu.abi"))
+                    .orElse("");
+            source = getClass().getClassLoader().getResourceAsStream(String.format("sqlite3/%s/sqlite3", abi));
+            if (null == source) {
+                throw new SQLException(String.format("No bundled sqlite3 for device abi [%s]", abi));
+            }
+            lastModified = System.currentTimeMillis();
+        } else {
+            final File file = new File(sqlite3Binary);
+            source = new FileInputStream(file);
+            lastModified = file.lastModified();
+        }
+        try (InputStream in = source) {
+            device.push(in, lastModified, 0755, new RemoteFile(PUSH_PATH));
+        }
+        final String target = applicationDataPath + "/code_cache/adb-jdbc-sqlite3";
+        try (InputStream in = device.executeShell(String.format("run-as %s sh -c %s",
+                packageName,
+                shellQuote(String.format("mkdir -p %s && cp %s %s && chmod 700 %s",
+                        shellQuote(new File(target).getParent()),
+                        PUSH_PATH,
+                        shellQuote(target),
+                        shellQuote(target)))))) {
+            final String output = StringUtils.trim(IOUtils.toString(in, Charset.defaultCharset()));
+            if (!output.isEmpty()) {
+                throw new SQLException(String.format("Unable to install sqlite3 to %s: %s", target, output));
+            }
+        }
+        log.debug("sqlite3 installed to {} on device {}", target, device.getSerial());
+        sqlite3 = target;
+        installedSerial = device.getSerial();
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        log.debug("Called");
+        return true;
+    }
+
+    @Override
+    public CallableStatement prepareCall(final String sql) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Remote execution mode is read only");
+    }
+
+    @Override
+    public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency)
+            throws SQLException {
+        throw new SQLFeatureNotSupportedException("Remote execution mode is read only");
+    }
+
+    @Override
+    public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency,
+            final int resultSetHoldability) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Remote execution mode is read only");
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType,
+            final int resultSetConcurrency) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType,
+            final int resultSetConcurrency, final int resultSetHoldability) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
+        log.debug("Called");
+        return RemoteStatement.prepare(this, this::query, schema::describe, sql, fetchSize);
+    }
+
+    /**
+     * @return output of sqlite3 in {@code -quote} mode with header row
+     */
+    private synchronized InputStream query(final String sql) throws SQLException {
+        log.debug("Called");
+        return execute(queryScript(sqlite3, dbAbsolutePath, sql));
+    }
+
+    /**
+     * @return shell command running query by sqlite3 in read only mode
+     */
+    static String queryScript(final String sqlite3, final String dbPath, final String sql) {
+        return String.format("%s -readonly -bail -header -quote %s %s",
+                shellQuote(sqlite3),
+                shellQuote(dbPath),
+                shellQuote(sql));
+    }
+
+    private static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
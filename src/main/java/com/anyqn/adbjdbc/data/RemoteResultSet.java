@@ -0,0 +1,588 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Forward only {@link ResultSet} of query run by {@code sqlite3 -header -quote}
+ * on device. Rows are parsed from shell output while cursor moves, at most
+ * fetch size rows are read ahead, so host memory does not depend on size of
+ * result. Values are SQL literals: {@code NULL}, numbers, quoted strings
+ * (strings with line breaks as {@code replace('..','\n',char(10))}) and
+ * {@code X'..'} blobs. Column types are taken from first row.
+ */
+@Slf4j
+public class RemoteResultSet implements InvocationHandler {
+    private static final int MAX_ERROR_LENGTH = 4096;
+
+    private final Statement statement;
+    private final InputStream in;
+    private final PushbackReader reader;
+    private final long maxRows;
+    private final List<String> columns = new ArrayList<>();
+    private final Deque<Object[]> buffer = new ArrayDeque<>();
+    private final StringBuilder consumed = new StringBuilder();
+    private int[] types;
+    private int fetchSize;
+    private Object[] row;
+    private long fetched;
+    private long position;
+    private boolean exhausted;
+    private boolean wasNull;
+    private boolean closed;
+
+    private RemoteResultSet(final Statement statement, final InputStream in, final int fetchSize,
+            final long maxRows) {
+        log.debug("Called");
+        this.statement = statement;
+        this.in = in;
+        reader = new PushbackReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1);
+        this.fetchSize = fetchSize;
+        this.maxRows = maxRows;
+    }
+
+    private void close() throws SQLException {
+        log.debug("Called");
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.clear();
+        row = null;
+        try {
+            in.close();
+        } catch (final IOException e) {
+            throw new SQLException("Unable to close remote query output", e);
+        }
+    }
+
+    private static Object convert(final Object value, final Class<?> type) throws SQLException {
+        if (null == value) {
+            if (type == boolean.class) {
+                return false;
+            }
+            return type.isPrimitive() ? convert(0L, type) : null;
+        }
+        if (type == Object.class || type.isInstance(value)) {
+            return value;
+        }
+        final String text = value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8)
+                : value.toString();
+        try {
+            if (type == String.class) {
+                return text;
+            }
+            if (type == byte[].class) {
+                return text.getBytes(StandardCharsets.UTF_8);
+            }
+            final Number number = value instanceof Number ? (Number) value : new BigDecimal(text.trim());
+            if (type == long.class || type == Long.class) {
+                return number.longValue();
+            }
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            }
+            if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            }
+            if (type == byte.class || type == Byte.class) {
+                return number.byteValue();
+            }
+            if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            }
+            if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return number.doubleValue() != 0;
+            }
+            if (type == BigDecimal.class) {
+                return new BigDecimal(number.toString());
+            }
+            if (type == Timestamp.class) {
+                return new Timestamp(number.longValue());
+            }
+            if (type == Date.class) {
+                return new Date(number.longValue());
+            }
+            if (type == Time.class) {
+                return new Time(number.longValue());
+            }
+        } catch (final NumberFormatException e) {
+            if (type == Timestamp.class) {
+                return Timestamp.valueOf(text);
+            }
+            if (type == Date.class) {
+                return Date.valueOf(text);
+            }
+            if (type == Time.class) {
+                return Time.valueOf(text);
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return Boolean.parseBoolean(text);
+            }
+            throw new SQLException(String.format("Unable to convert [%s] to %s", text, type.getSimpleName()), e);
+        }
+        throw new SQLFeatureNotSupportedException(String.format("Conversion to %s", type.getSimpleName()));
+    }
+
+    private Object[] current() throws SQLException {
+        if (closed) {
+            throw new SQLException("ResultSet is closed");
+        }
+        if (null == row) {
+            throw new SQLException("ResultSet is not positioned on row");
+        }
+        return row;
+    }
+
+    /**
+     * Read up to fetch size rows ahead.
+     */
+    private void fill() throws SQLException {
+        while (!exhausted && buffer.size() < Math.max(fetchSize, 1)) {
+            if (maxRows > 0 && fetched >= maxRows) {
+                exhausted = true;
+                break;
+            }
+            final Object[] values = readRow();
+            if (null == values) {
+                exhausted = true;
+            } else {
+                if (null == types) {
+                    types = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        types[i] = typeOf(values[i]);
+                    }
+                }
+                buffer.add(values);
+                fetched++;
+            }
+        }
+    }
+
+    private int findColumn(final String label) throws SQLException {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(label)) {
+                return i + 1;
+            }
+        }
+        throw new SQLException(String.format("No such column %s", label));
+    }
+
+    private Object getValue(final Object column) throws SQLException {
+        final Object[] values = current();
+        final int index = column instanceof String ? findColumn((String) column) : (Integer) column;
+        if (index < 1 || index > values.length) {
+            throw new SQLException(String.format("Column index %d out of range", index));
+        }
+        wasNull = null == values[index - 1];
+        return values[index - 1];
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass().equals(Object.class)) {
+            return method.invoke(this, args);
+        }
+        final String name = method.getName();
+        switch (name) {
+        case "next":
+            return next();
+        case "close":
+            close();
+            return null;
+        case "isClosed":
+            return closed;
+        case "wasNull":
+            return wasNull;
+        case "getMetaData":
+            fill();
+            return Proxy.newProxyInstance(RemoteResultSet.class.getClassLoader(),
+                    new Class<?>[] { ResultSetMetaData.class },
+                    this::invokeMetaData);
+        case "findColumn":
+            return findColumn((String) args[0]);
+        case "getFetchSize":
+            return fetchSize;
+        case "setFetchSize":
+            fetchSize = (Integer) args[0];
+            return null;
+        case "getFetchDirection":
+            return ResultSet.FETCH_FORWARD;
+        case "setFetchDirection":
+            if ((Integer) args[0] != ResultSet.FETCH_FORWARD) {
+                throw new SQLFeatureNotSupportedException("Remote query result is forward only");
+            }
+            return null;
+        case "getType":
+            return ResultSet.TYPE_FORWARD_ONLY;
+        case "getConcurrency":
+            return ResultSet.CONCUR_READ_ONLY;
+        case "getHoldability":
+            return ResultSet.CLOSE_CURSORS_AT_COMMIT;
+        case "getStatement":
+            return statement;
+        case "getRow":
+            return null == row ? 0 : (int) position;
+        case "isBeforeFirst":
+            fill();
+            return 0 == position && !buffer.isEmpty();
+        case "isAfterLast":
+            return position > 0 && null == row;
+        case "getWarnings":
+            return null;
+        case "clearWarnings":
+            return null;
+        case "unwrap":
+            return ((Class<?>) args[0]).cast(proxy);
+        case "isWrapperFor":
+            return ((Class<?>) args[0]).isInstance(proxy);
+        default:
+            break;
+        }
+        if (name.startsWith("get") && null != args && args.length >= 1
+                && (args[0] instanceof Integer || args[0] instanceof String)) {
+            final Object value = getValue(args[0]);
+            if ("getObject".equals(name) && args.length == 2 && args[1] instanceof Class) {
+                return convert(value, (Class<?>) args[1]);
+            }
+            return convert(value, method.getReturnType());
+        }
+        throw new SQLFeatureNotSupportedException(String.format("%s of remote query result", name));
+    }
+
+    private Object invokeMetaData(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass().equals(Object.class)) {
+            try {
+                return method.invoke(this, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        switch (method.getName()) {
+        case "getColumnCount":
+            return columns.size();
+        case "getColumnName":
+        case "getColumnLabel":
+            return columns.get((Integer) args[0] - 1);
+        case "getColumnType":
+            return null == types ? Types.NULL : types[(Integer) args[0] - 1];
+        case "getColumnTypeName":
+            return typeName(null == types ? Types.NULL : types[(Integer) args[0] - 1]);
+        case "getColumnClassName":
+            return Object.class.getName();
+        case "isNullable":
+            return ResultSetMetaData.columnNullableUnknown;
+        case "getTableName":
+        case "getSchemaName":
+        case "getCatalogName":
+            return "";
+        case "getPrecision":
+        case "getScale":
+            return 0;
+        case "getColumnDisplaySize":
+            return Integer.MAX_VALUE;
+        case "isReadOnly":
+        case "isCaseSensitive":
+        case "isSearchable":
+        case "isSigned":
+            return true;
+        case "isWritable":
+        case "isDefinitelyWritable":
+        case "isAutoIncrement":
+        case "isCurrency":
+            return false;
+        case "unwrap":
+            return ((Class<?>) args[0]).cast(proxy);
+        case "isWrapperFor":
+            return ((Class<?>) args[0]).isInstance(proxy);
+        default:
+            throw new SQLFeatureNotSupportedException(method.getName());
+        }
+    }
+
+    private boolean next() throws SQLException {
+        if (closed) {
+            throw new SQLException("ResultSet is closed");
+        }
+        if (buffer.isEmpty()) {
+            fill();
+        }
+        row = buffer.poll();
+        if (null == row) {
+            close();
+            return false;
+        }
+        position++;
+        return true;
+    }
+
+    private int read() throws IOException {
+        final int c = reader.read();
+        if (c != -1 && consumed.length() < MAX_ERROR_LENGTH) {
+            consumed.append((char) c);
+        }
+        return c;
+    }
+
+    private void expect(final String text) throws IOException, SQLException {
+        for (final char c : text.toCharArray()) {
+            if (Character.toLowerCase(read()) != Character.toLowerCase(c)) {
+                throw unexpectedOutput();
+            }
+        }
+    }
+
+    private String readQuoted() throws IOException, SQLException {
+        final StringBuilder value = new StringBuilder();
+        while (true) {
+            final int c = read();
+            if (c == -1) {
+                throw unexpectedOutput();
+            }
+            if (c == '\'') {
+                final int next = reader.read();
+                if (next != '\'') {
+                    if (next != -1) {
+                        reader.unread(next);
+                    }
+                    return value.toString();
+                }
+            }
+            value.append((char) c);
+        }
+    }
+
+    /**
+     * @return values of next row or null at the end of output
+     */
+    private Object[] readRow() throws SQLException {
+        consumed.setLength(0);
+        try {
+            int c = reader.read();
+            while (c == '\r' || c == '\n') {
+                c = reader.read();
+            }
+            if (c == -1) {
+                return null;
+            }
+            reader.unread(c);
+            final List<Object> values = new ArrayList<>();
+            while (true) {
+                values.add(readValue());
+                c = read();
+                if (c == '\r') {
+                    c = read();
+                }
+                if (c == -1 || c == '\n') {
+                    break;
+                }
+                if (c != ',') {
+                    throw unexpectedOutput();
+                }
+            }
+            if (columns.isEmpty()) {
+                for (final Object value : values) {
+                    columns.add(String.valueOf(value));
+                }
+                return readRow();
+            }
+            if (values.size() != columns.size()) {
+                throw unexpectedOutput();
+            }
+            return values.toArray();
+        } catch (final IOException e) {
+            throw new SQLException("Unable to read remote query output", e);
+        }
+    }
+
+    private Object readValue() throws IOException, SQLException {
+        final int c = read();
+        switch (c) {
+        case '\'':
+            return readQuoted();
+        case 'N':
+        case 'n':
+            expect("ULL");
+            return null;
+        case 'X':
+        case 'x':
+            expect("'");
+            final String hex = readQuoted();
+            final byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            }
+            return bytes;
+        case 'r':
+        case 'R':
+            // replace('text with markers','\n',char(10)) for strings with line breaks
+            expect("eplace(");
+            final String text = String.valueOf(readValue());
+            expect(",'");
+            final String marker = readQuoted();
+            expect(",char(");
+            final StringBuilder code = new StringBuilder();
+            int digit = read();
+            while (Character.isDigit(digit)) {
+                code.append((char) digit);
+                digit = read();
+            }
+            if (digit != ')' || read() != ')' || code.length() == 0) {
+                throw unexpectedOutput();
+            }
+            return text.replace(marker, String.valueOf((char) Integer.parseInt(code.toString())));
+        default:
+            if (c == '-' || c == '+' || c == '.' || Character.isDigit(c)) {
+                final StringBuilder number = new StringBuilder().append((char) c);
+                int next = reader.read();
+                while (next == '.' || next == 'e' || next == 'E' || next == '-' || next == '+'
+                        || Character.isDigit(next)) {
+                    consume(next);
+                    number.append((char) next);
+                    next = reader.read();
+                }
+                if (next != -1) {
+                    reader.unread(next);
+                }
+                final String literal = number.toString();
+                try {
+                    return literal.contains(".") || literal.contains("e") || literal.contains("E")
+                            ? (Object) Double.parseDouble(literal)
+                            : (Object) Long.parseLong(literal);
+                } catch (final NumberFormatException e) {
+                    return Double.parseDouble(literal);
+                }
+            }
+            throw unexpectedOutput();
+        }
+    }
+
+    private void consume(final int c) {
+        if (consumed.length() < MAX_ERROR_LENGTH) {
+            consumed.append((char) c);
+        }
+    }
+
+    /**
+     * Output which is not query result is error message of sqlite3, run-as or
+     * shell.
+     */
+    private SQLException unexpectedOutput() throws IOException {
+        final StringBuilder message = new StringBuilder(consumed);
+        int c = reader.read();
+        while (c != -1 && message.length() < MAX_ERROR_LENGTH) {
+            message.append((char) c);
+            c = reader.read();
+        }
+        exhausted = true;
+        return new SQLException(String.format("Remote query failed: %s", message.toString().trim()));
+    }
+
+    private static int typeOf(final Object value) {
+        if (value instanceof Long) {
+            return Types.BIGINT;
+        }
+        if (value instanceof Double) {
+            return Types.DOUBLE;
+        }
+        if (value instanceof byte[]) {
+            return Types.BLOB;
+        }
+        return null == value ? Types.NULL : Types.VARCHAR;
+    }
+
+    private static String typeName(final int type) {
+        switch (type) {
+        case Types.BIGINT:
+            return "INTEGER";
+        case Types.DOUBLE:
+            return "REAL";
+        case Types.BLOB:
+            return "BLOB";
+        case Types.VARCHAR:
+            return "TEXT";
+        default:
+            return "NULL";
+        }
+    }
+
+    /**
+     * Read header of result, errors of query are thrown here.
+     *
+     * @param statement statement returned by {@link ResultSet#getStatement()}
+     * @param in        output of sqlite3, closed with result set
+     * @param fetchSize count of rows read ahead
+     * @param maxRows   max count of rows or 0 without limit
+     */
+    public static ResultSet open(final Statement statement, @NonNull final InputStream in, final int fetchSize,
+            final long maxRows) throws SQLException {
+        final RemoteResultSet handler = new RemoteResultSet(statement, in, fetchSize, maxRows);
+        try {
+            handler.fill();
+        } catch (final SQLException | RuntimeException e) {
+            handler.close();
+            throw e;
+        }
+        return (ResultSet) Proxy.newProxyInstance(RemoteResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                handler);
+    }
+
+    /**
+     * Result without rows, sqlite3 prints no header for query without rows,
+     * so columns are described by caller.
+     *
+     * @param statement statement returned by {@link ResultSet#getStatement()}
+     * @param columns   column names
+     */
+    public static ResultSet empty(final Statement statement, @NonNull final List<String> columns) {
+        final RemoteResultSet handler = new RemoteResultSet(statement, InputStream.nullInputStream(), 0, 0);
+        handler.columns.addAll(columns);
+        handler.exhausted = true;
+        return (ResultSet) Proxy.newProxyInstance(RemoteResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                handler);
+    }
+}
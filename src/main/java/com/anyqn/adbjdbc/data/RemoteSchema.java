@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.anyqn.adbjdbc.util.FunctionWithException;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copy of device db schema in host in-memory db for remote execution mode.
+ * Tables, indexes and views are read from {@code sqlite_master} on device by
+ * the same query path as user queries and created without rows on host, so
+ * {@link DatabaseMetaData} of SQLite JDBC driver serves tables, columns, keys
+ * and indexes, and columns of empty results are taken by preparing query on
+ * host instead of running it on device again. Copy is refreshed when
+ * {@code schema_version} on device changed.
+ */
+@Slf4j
+public class RemoteSchema {
+    private static final String USER_OBJECTS = "name not like 'sqlite\\_%' escape '\\'";
+    private static final String SCHEMA_SQL = "select 'version' as type, null as name, schema_version as sql"
+            + " from pragma_schema_version union all select type, name, sql from sqlite_master"
+            + " where sql is not null and type in ('table', 'index', 'view') and " + USER_OBJECTS;
+    private static final List<String> TYPES = List.of("table", "index", "view");
+
+    private final FunctionWithException<String, InputStream, SQLException> query;
+    @Getter
+    private final Connection connection;
+    private Object version;
+
+    /**
+     * @param query runs sql on device and returns sqlite3 output
+     */
+    public RemoteSchema(@NonNull final FunctionWithException<String, InputStream, SQLException> query)
+            throws SQLException {
+        log.debug("Called");
+        this.query = query;
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    public void close() throws SQLException {
+        log.debug("Called");
+        connection.close();
+    }
+
+    /**
+     * Column names of query prepared on schema copy, copy is loaded on first
+     * call.
+     *
+     * @return column names or empty list if query can not be prepared on host,
+     *         e.g. it uses functions of device sqlite3 only
+     */
+    public synchronized List<String> describe(@NonNull final String sql) throws SQLException {
+        log.debug("Called");
+        if (null == version) {
+            refresh();
+        }
+        final List<String> columns = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            final ResultSetMetaData metaData = statement.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.add(metaData.getColumnLabel(i));
+            }
+        } catch (final SQLException e) {
+            log.debug("Unable to describe columns of query on host", e);
+            return List.of();
+        }
+        return columns;
+    }
+
+    /**
+     * Metadata of schema copy refreshed by this call.
+     *
+     * @param owner connection returned by
+     *              {@link DatabaseMetaData#getConnection()}
+     */
+    public synchronized DatabaseMetaData getMetaData(@NonNull final Connection owner) throws SQLException {
+        log.debug("Called");
+        refresh();
+        final DatabaseMetaData metaData = connection.getMetaData();
+        return (DatabaseMetaData) Proxy.newProxyInstance(RemoteSchema.class.getClassLoader(),
+                new Class<?>[] { DatabaseMetaData.class },
+                (proxy, method, args) -> {
+                    if ("getConnection".equals(method.getName())) {
+                        return owner;
+                    }
+                    try {
+                        return method.invoke(metaData, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * Read schema from device and recreate it on host if schema version
+     * changed. Objects which host SQLite can not create (e.g. virtual tables of
+     * absent modules) are skipped.
+     */
+    public synchronized void refresh() throws SQLException {
+        log.debug("Called");
+        Object newVersion = null;
+        final List<SchemaObject> objects = new ArrayList<>();
+        try (ResultSet resultSet = RemoteResultSet.open(null, query.accept(SCHEMA_SQL), 1000, 0)) {
+            while (resultSet.next()) {
+                if ("version".equals(resultSet.getString(1))) {
+                    newVersion = resultSet.getObject(3);
+                } else {
+                    objects.add(new SchemaObject(resultSet.getString(1), resultSet.getString(2),
+                            resultSet.getString(3)));
+                }
+            }
+        }
+        if (null != version && version.equals(newVersion)) {
+            return;
+        }
+        log.debug("Schema version changed from {} to {}", version, newVersion);
+        objects.sort(Comparator.comparingInt(o -> TYPES.indexOf(o.getType())));
+        try (Statement statement = connection.createStatement()) {
+            dropAll(statement);
+            for (final SchemaObject object : objects) {
+                try {
+                    statement.executeUpdate(object.getSql());
+                } catch (final SQLException e) {
+                    log.debug("Unable to create {} {} on host with error [{}]", object.getType(), object.getName(),
+                            e.getMessage());
+                }
+            }
+        }
+        version = newVersion;
+    }
+
+    private void dropAll(final Statement statement) throws SQLException {
+        final List<SchemaObject> existing = new ArrayList<>();
+        try (ResultSet resultSet = statement.executeQuery("select type, name from sqlite_master"
+                + " where type in ('view', 'table') and " + USER_OBJECTS + " order by type = 'table'")) {
+            while (resultSet.next()) {
+                existing.add(new SchemaObject(resultSet.getString(1), resultSet.getString(2), null));
+            }
+        }
+        for (final SchemaObject object : existing) {
+            try {
+                statement.executeUpdate(String.format("drop %s if exists \"%s\"",
+                        object.getType(),
+                        object.getName().replace("\"", "\"\"")));
+            } catch (final SQLException e) {
+                log.debug("Unable to drop {} {} on host with error [{}]", object.getType(), object.getName(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    @Value
+    private static class SchemaObject {
+        String type;
+        String name;
+        String sql;
+    }
+}
@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.anyqn.adbjdbc.util.FunctionWithException;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Read only {@link Statement} and {@link PreparedStatement} of remote
+ * execution mode. Query is run by sqlite3 on device, parameters are bound to
+ * sql text as SQL literals, result is streamed by {@link RemoteResultSet}.
+ */
+@Slf4j
+public class RemoteStatement implements InvocationHandler {
+    private static final Set<String> UPDATE_METHODS = Set.of("executeUpdate",
+            "executeLargeUpdate",
+            "addBatch",
+            "clearBatch",
+            "executeBatch",
+            "executeLargeBatch",
+            "getGeneratedKeys");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Connection owner;
+    private final FunctionWithException<String, InputStream, SQLException> query;
+    private final FunctionWithException<String, List<String>, SQLException> describe;
+    private final String sql;
+    private final int defaultFetchSize;
+    private final Map<Integer, String> parameters = new TreeMap<>();
+    private ResultSet resultSet;
+    private int fetchSize;
+    private long maxRows;
+    private int queryTimeout;
+    private boolean poolable;
+    private boolean closeOnCompletion;
+    private boolean closed;
+
+    private RemoteStatement(@NonNull final Connection owner,
+            @NonNull final FunctionWithException<String, InputStream, SQLException> query,
+            @NonNull final FunctionWithException<String, List<String>, SQLException> describe, final String sql,
+            final int defaultFetchSize) {
+        log.debug("Called");
+        this.owner = owner;
+        this.query = query;
+        this.describe = describe;
+        this.sql = sql;
+        this.defaultFetchSize = defaultFetchSize;
+    }
+
+    /**
+     * Replace {@code ?} and {@code ?NNN} placeholders outside of literals and
+     * comments by recorded parameters.
+     */
+    private String bind(final String text) throws SQLException {
+        final StringBuilder bound = new StringBuilder(text.length());
+        int maxIndex = 0;
+        int i = 0;
+        while (i < text.length()) {
+            final char c = text.charAt(i);
+            final int end;
+            if (c == '\'' || c == '"' || c == '`') {
+                end = indexAfter(text, String.valueOf(c), i + 1);
+            } else if (c == '[') {
+                end = indexAfter(text, "]", i + 1);
+            } else if (text.startsWith("--", i)) {
+                end = indexAfter(text, "\n", i + 2);
+            } else if (text.startsWith("/*", i)) {
+                end = indexAfter(text, "*/", i + 2);
+            } else if (c == '?') {
+                int digits = i + 1;
+                while (digits < text.length() && Character.isDigit(text.charAt(digits))) {
+                    digits++;
+                }
+                // like SQLite, plain ? gets number next to largest used one
+                final int index = digits > i + 1 ? Integer.parseInt(text.substring(i + 1, digits)) : maxIndex + 1;
+                maxIndex = Math.max(maxIndex, index);
+                final String value = parameters.get(index);
+                if (null == value) {
+                    throw new SQLException(String.format("Parameter %d is not set", index));
+                }
+                bound.append(value);
+                i = digits;
+                continue;
+            } else {
+                end = i + 1;
+            }
+            bound.append(text, i, end);
+            i = end;
+        }
+        return bound.toString();
+    }
+
+    private void close() throws SQLException {
+        log.debug("Called");
+        closed = true;
+        closeResultSet();
+    }
+
+    private void closeResultSet() throws SQLException {
+        if (null != resultSet) {
+            try {
+                resultSet.close();
+            } finally {
+                resultSet = null;
+            }
+        }
+    }
+
+    private ResultSet executeQuery(final Statement proxy, final String text) throws SQLException {
+        closeResultSet();
+        final String bound = bind(text);
+        log.debug("Execute remote query {}", bound);
+        resultSet = RemoteResultSet
+                .open(proxy, query.accept(bound), fetchSize > 0 ? fetchSize : defaultFetchSize, maxRows);
+        if (0 == resultSet.getMetaData().getColumnCount()) {
+            final List<String> columns = describe.accept(bound);
+            if (!columns.isEmpty()) {
+                resultSet.close();
+                resultSet = RemoteResultSet.empty(proxy, columns);
+            }
+        }
+        return resultSet;
+    }
+
+    private static int indexAfter(final String text, final String terminator, final int from) {
+        final int found = text.indexOf(terminator, from);
+        return found < 0 ? text.length() : found + terminator.length();
+    }
+
+    @Override
+    public synchronized Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+        log.debug("Called {}", method.getName());
+        if (method.getDeclaringClass().equals(Object.class)) {
+            try {
+                return method.invoke(this, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        final String name = method.getName();
+        switch (name) {
+        case "close":
+            close();
+            return null;
+        case "isClosed":
+            return closed;
+        case "getConnection":
+            return owner;
+        case "unwrap":
+            return ((Class<?>) args[0]).cast(proxy);
+        case "isWrapperFor":
+            return ((Class<?>) args[0]).isInstance(proxy);
+        default:
+            break;
+        }
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        if (UPDATE_METHODS.contains(name)) {
+            throw new SQLFeatureNotSupportedException("Remote execution mode is read only");
+        }
+        if (method.getDeclaringClass().equals(PreparedStatement.class) && name.startsWith("set")) {
+            parameters.put((Integer) args[0], "setNull".equals(name) ? "NULL" : toLiteral(args[1]));
+            return null;
+        }
+        switch (name) {
+        case "executeQuery":
+            return executeQuery((Statement) proxy, null == args || args.length == 0 ? sql : (String) args[0]);
+        case "execute":
+            executeQuery((Statement) proxy, null == args || args.length == 0 ? sql : (String) args[0]);
+            return true;
+        case "getResultSet":
+            return resultSet;
+        case "getUpdateCount":
+            return -1;
+        case "getLargeUpdateCount":
+            return -1L;
+        case "getMoreResults":
+            closeResultSet();
+            return false;
+        case "clearParameters":
+            parameters.clear();
+            return null;
+        case "cancel":
+            closeResultSet();
+            return null;
+        case "setFetchSize":
+            fetchSize = (Integer) args[0];
+            return null;
+        case "getFetchSize":
+            return fetchSize;
+        case "setMaxRows":
+            maxRows = (Integer) args[0];
+            return null;
+        case "setLargeMaxRows":
+            maxRows = (Long) args[0];
+            return null;
+        case "getMaxRows":
+            return (int) Math.min(maxRows, Integer.MAX_VALUE);
+        case "getLargeMaxRows":
+            return maxRows;
+        case "setQueryTimeout":
+            queryTimeout = (Integer) args[0];
+            return null;
+        case "getQueryTimeout":
+            return queryTimeout;
+        case "setPoolable":
+            poolable = (Boolean) args[0];
+            return null;
+        case "isPoolable":
+            return poolable;
+        case "closeOnCompletion":
+            closeOnCompletion = true;
+            return null;
+        case "isCloseOnCompletion":
+            return closeOnCompletion;
+        case "setFetchDirection":
+            if ((Integer) args[0] != ResultSet.FETCH_FORWARD) {
+                throw new SQLFeatureNotSupportedException("Remote query result is forward only");
+            }
+            return null;
+        case "getFetchDirection":
+            return ResultSet.FETCH_FORWARD;
+        case "getResultSetType":
+            return ResultSet.TYPE_FORWARD_ONLY;
+        case "getResultSetConcurrency":
+            return ResultSet.CONCUR_READ_ONLY;
+        case "getResultSetHoldability":
+            return ResultSet.CLOSE_CURSORS_AT_COMMIT;
+        case "setEscapeProcessing":
+        case "setCursorName":
+        case "setMaxFieldSize":
+        case "clearWarnings":
+            return null;
+        case "getMaxFieldSize":
+            return 0;
+        case "getWarnings":
+        case "getMetaData":
+            return null;
+        default:
+            throw new SQLFeatureNotSupportedException(String.format("%s in remote execution mode", name));
+        }
+    }
+
+    /**
+     * @return value as SQL literal, dates are stored as milliseconds like
+     *         SQLite JDBC driver does by default
+     */
+    private static String toLiteral(final Object value) throws SQLException {
+        if (null == value) {
+            return "NULL";
+        }
+        if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            final double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number)) {
+                return "NULL";
+            }
+            return Double.isInfinite(number) ? (number > 0 ? "9e999" : "-9e999") : Double.toString(number);
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof java.util.Date) {
+            return Long.toString(((java.util.Date) value).getTime());
+        }
+        if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            final StringBuilder literal = new StringBuilder(bytes.length * 2 + 3).append("X'");
+            for (final byte b : bytes) {
+                literal.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+            return literal.append('\'').toString();
+        }
+        throw new SQLFeatureNotSupportedException(
+                String.format("Parameter of type %s in remote execution mode", value.getClass().getSimpleName()));
+    }
+
+    /**
+     * @param owner            connection returned by
+     *                         {@link Statement#getConnection()}
+     * @param query            runs sql on device and returns sqlite3 output
+     * @param describe         column names of query, used for result without
+     *                         rows which has no header in sqlite3 output
+     * @param sql              sql of statement
+     * @param defaultFetchSize count of rows read ahead when fetch size is not
+     *                         set
+     */
+    public static PreparedStatement prepare(@NonNull final Connection owner,
+            @NonNull final FunctionWithException<String, InputStream, SQLException> query,
+            @NonNull final FunctionWithException<String, List<String>, SQLException> describe,
+            @NonNull final String sql, final int defaultFetchSize) {
+        return (PreparedStatement) Proxy.newProxyInstance(RemoteStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new RemoteStatement(owner, query, describe, sql, defaultFetchSize));
+    }
+
+    /**
+     * @param owner            connection returned by
+     *                         {@link Statement#getConnection()}
+     * @param query            runs sql on device and returns sqlite3 output
+     * @param describe         column names of query, used for result without
+     *                         rows which has no header in sqlite3 output
+     * @param defaultFetchSize count of rows read ahead when fetch size is not
+     *                         set
+     */
+    public static Statement create(@NonNull final Connection owner,
+            @NonNull final FunctionWithException<String, InputStream, SQLException> query,
+            @NonNull final FunctionWithException<String, List<String>, SQLException> describe,
+            final int defaultFetchSize) {
+        return (Statement) Proxy.newProxyInstance(RemoteStatement.class.getClassLoader(),
+                new Class<?>[] { Statement.class },
+                new RemoteStatement(owner, query, describe, null, defaultFetchSize));
+    }
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.anyqn.adbjdbc.ConnectionHolder;
+import com.anyqn.adbjdbc.Snapshot;
+import com.anyqn.adbjdbc.util.FunctionWithException;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Driver level {@link Statement} and {@link PreparedStatement} which survives
+ * snapshot refresh. Proxy is bound to snapshot and keeps reference to it, on
+ * execution after refresh it is bound again to current snapshot: statement is
+ * prepared on new connection and recorded options and parameters are applied
+ * to it. With {@link QueryResultCache} {@code executeQuery} returns result
+ * cached for current snapshot when sql, parameters and options are the same.
+ */
+@Slf4j
+public class SnapshotStatement implements InvocationHandler {
+    private static final Set<String> EXECUTE_METHODS = Set
+            .of("execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch", "executeLargeBatch");
+    private static final Set<String> OPTION_METHODS = Set.of("setCursorName",
+            "setEscapeProcessing",
+            "setFetchDirection",
+            "setFetchSize",
+            "setLargeMaxRows",
+            "setMaxFieldSize",
+            "setMaxRows",
+            "setPoolable",
+            "setQueryTimeout",
+            "closeOnCompletion");
+
+    private final Connection owner;
+    private final ConnectionHolder connectionHolder;
+    private final FunctionWithException<Connection, Statement, SQLException> factory;
+    private final String sql;
+    private final StatementCache cache;
+    private final QueryResultCache resultCache;
+    private final Map<Method, Invocation> options = new LinkedHashMap<>();
+    private final Map<Integer, Invocation> parameters = new TreeMap<>();
+    private Snapshot snapshot;
+    private Statement delegate;
+    private ResultSet resultSet;
+    private boolean batchOpen;
+    private boolean closed;
+
+    private SnapshotStatement(@NonNull final Connection owner, @NonNull final ConnectionHolder connectionHolder,
+            @NonNull final FunctionWithException<Connection, Statement, SQLException> factory, final String sql,
+            final StatementCache cache, final QueryResultCache resultCache) {
+        log.debug("Called");
+        this.owner = owner;
+        this.connectionHolder = connectionHolder;
+        this.factory = factory;
+        this.sql = sql;
+        this.cache = cache;
+        this.resultCache = resultCache;
+    }
+
+    private void bind(final boolean refresh) throws SQLException {
+        if (null != delegate
+                && (!refresh || batchOpen || snapshot.getGeneration() == connectionHolder.getGeneration())) {
+            return;
+        }
+        final Snapshot current = connectionHolder.retain();
+        Statement created = null;
+        try {
+            if (null != cache) {
+                created = cache.borrow(current, sql);
+            }
+            if (null == created) {
+                created = factory.accept(current.getConnection());
+            }
+            for (final Invocation invocation : options.values()) {
+                invocation.apply(created);
+            }
+            for (final Invocation invocation : parameters.values()) {
+                invocation.apply(created);
+            }
+        } catch (final SQLException | RuntimeException e) {
+            if (null != created) {
+                created.close();
+            }
+            connectionHolder.release(current);
+            throw e;
+        }
+        unbind();
+        log.debug("Statement bound to snapshot generation {}", current.getGeneration());
+        snapshot = current;
+        delegate = created;
+    }
+
+    /**
+     * Key of query result in {@link QueryResultCache}.
+     *
+     * @return key or null if query has parameters which can not be compared
+     *         (streams, blobs and other objects)
+     */
+    private List<Object> cacheKey(final String query) {
+        if (null == query) {
+            return null;
+        }
+        final List<Object> key = new ArrayList<>();
+        key.add(QueryResultCache.normalize(query));
+        for (final Invocation invocation : parameters.values()) {
+            key.add(invocation.getMethod().getName());
+            for (final Object arg : invocation.getArgs()) {
+                if (arg instanceof byte[]) {
+                    key.add(ByteBuffer.wrap(((byte[]) arg).clone()));
+                } else if (null == arg || arg instanceof String || arg instanceof Number || arg instanceof Boolean
+                        || arg instanceof java.util.Date) {
+                    key.add(arg);
+                } else {
+                    return null;
+                }
+            }
+        }
+        for (final Invocation invocation : options.values()) {
+            key.add(invocation.getMethod().getName());
+            key.add(null == invocation.getArgs() ? List.of() : Arrays.asList(invocation.getArgs()));
+        }
+        return key;
+    }
+
+    private void close() throws SQLException {
+        log.debug("Called");
+        closed = true;
+        unbind();
+    }
+
+    /**
+     * Cached statement is lent to other proxy, so its result is closed like on
+     * close of statement.
+     *
+     * @return false if result can not be closed and statement should not be
+     *         cached
+     */
+    private boolean closeResultSet() {
+        if (null == resultSet) {
+            return true;
+        }
+        try {
+            resultSet.close();
+            return true;
+        } catch (final SQLException e) {
+            log.debug("Unable to close result of statement", e);
+            return false;
+        }
+    }
+
+    private ResultSet executeCached(final Statement proxy, final Method method, final Object[] args)
+            throws ReflectiveOperationException, SQLException {
+        final List<Object> key = cacheKey(null == args || args.length == 0 ? sql : (String) args[0]);
+        if (null == key) {
+            return (ResultSet) method.invoke(delegate, args);
+        }
+        final ResultSet cached = resultCache.get(snapshot, key, proxy);
+        if (null != cached) {
+            return cached;
+        }
+        return resultCache.record(snapshot, key, (ResultSet) method.invoke(delegate, args), proxy);
+    }
+
+    @Override
+    public synchronized Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+        log.debug("Called {}", method.getName());
+        if (method.getDeclaringClass().equals(Object.class)) {
+            return method.invoke(this, args);
+        }
+        switch (method.getName()) {
+        case "close":
+            close();
+            return null;
+        case "isClosed":
+            return closed;
+        case "getConnection":
+            return owner;
+        default:
+            break;
+        }
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        final String name = method.getName();
+        bind(EXECUTE_METHODS.contains(name));
+        if (OPTION_METHODS.contains(name)) {
+            options.put(method, new Invocation(method, args));
+        } else if (method.getDeclaringClass().equals(PreparedStatement.class) && name.startsWith("set")) {
+            parameters.put((Integer) args[0], new Invocation(method, args));
+        } else if ("clearParameters".equals(name)) {
+            parameters.clear();
+        }
+        try {
+            final Object result = null != resultCache && "executeQuery".equals(name)
+                    ? executeCached((Statement) proxy, method, args)
+                    : method.invoke(delegate, args);
+            if (result instanceof ResultSet) {
+                resultSet = (ResultSet) result;
+            }
+            return result;
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            if ("addBatch".equals(name)) {
+                batchOpen = true;
+            } else if ("clearBatch".equals(name) || name.endsWith("Batch") && name.startsWith("execute")) {
+                batchOpen = false;
+            }
+        }
+    }
+
+    private void unbind() throws SQLException {
+        if (null != delegate) {
+            try {
+                if (null != cache && options.isEmpty() && closeResultSet()) {
+                    cache.giveBack(snapshot, sql, (PreparedStatement) delegate);
+                } else {
+                    delegate.close();
+                }
+            } finally {
+                connectionHolder.release(snapshot);
+                delegate = null;
+                resultSet = null;
+                snapshot = null;
+            }
+        }
+    }
+
+    /**
+     * @param owner            connection returned by
+     *                         {@link Statement#getConnection()}
+     * @param connectionHolder holder of current snapshot
+     * @param factory          creates prepared statement on snapshot connection
+     * @param sql              sql of statement
+     * @param cache            cache of idle statements or null if statement
+     *                         can not be taken from cache
+     * @param resultCache      cache of query results or null
+     */
+    public static PreparedStatement prepare(@NonNull final Connection owner,
+            @NonNull final ConnectionHolder connectionHolder,
+            @NonNull final FunctionWithException<Connection, Statement, SQLException> factory,
+            @NonNull final String sql, final StatementCache cache, final QueryResultCache resultCache)
+            throws SQLException {
+        final SnapshotStatement handler = new SnapshotStatement(owner,
+                connectionHolder,
+                factory,
+                sql,
+                cache,
+                resultCache);
+        handler.bind(false);
+        return (PreparedStatement) Proxy.newProxyInstance(SnapshotStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                handler);
+    }
+
+    /**
+     * @param owner            connection returned by
+     *                         {@link Statement#getConnection()}
+     * @param connectionHolder holder of current snapshot
+     * @param factory          creates statement on snapshot connection
+     * @param resultCache      cache of query results or null
+     */
+    public static Statement create(@NonNull final Connection owner, @NonNull final ConnectionHolder connectionHolder,
+            @NonNull final FunctionWithException<Connection, Statement, SQLException> factory,
+            final QueryResultCache resultCache) throws SQLException {
+        final SnapshotStatement handler = new SnapshotStatement(owner,
+                connectionHolder,
+                factory,
+                null,
+                null,
+                resultCache);
+        handler.bind(false);
+        return (Statement) Proxy.newProxyInstance(SnapshotStatement.class.getClassLoader(),
+                new Class<?>[] { Statement.class },
+                handler);
+    }
+
+    @Value
+    private static class Invocation {
+        Method method;
+        Object[] args;
+
+        void apply(final Statement statement) throws SQLException {
+            try {
+                method.invoke(statement, args);
+            } catch (final InvocationTargetException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw new IllegalStateException("Unable to apply statement call " + method.getName(), e.getCause());
+            } catch (final IllegalAccessException e) {
+                throw new IllegalStateException("Unable to apply statement call " + method.getName(), e);
+            }
+        }
+    }
+}
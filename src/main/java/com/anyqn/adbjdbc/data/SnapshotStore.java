@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Host side store of device db copies which survives JVM restart. Entry is
+ * keyed by device identifier, package and db path, it remembers device serial,
+ * size and modification time of db on device and hash of stored copy. Stored
+ * copy is opened at connect time and revalidated by first fetch. Total size of
+ * store is limited by {@code cacheQuota}, least recently used entries are
+ * evicted. Store directory is private to user: it is created with owner only
+ * permissions on POSIX file systems, stored copies are written by
+ * {@link Files#createTempFile} which creates owner only files.
+ */
+@Slf4j
+public class SnapshotStore {
+    private static final String DB_SUFFIX = ".db";
+    private static final String INFO_SUFFIX = ".properties";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String DIRECTORY_PERMISSIONS = "rwx------";
+
+    private final boolean enabled;
+    private final File directory;
+    private final long quota;
+    private final int bufferSize;
+
+    public SnapshotStore(@NonNull final Map<String, String> params) {
+        log.debug("Called");
+        enabled = Boolean.parseBoolean(params.getOrDefault("snapshotCache", "true"));
+        directory = new File(params.getOrDefault("cacheDir",
+                new File(System.getProperty("java.io.tmpdir"),
+                        "adb-jdbc-cache-" + System.getProperty("user.name").replaceAll("[^\\w.-]", "_"))
+                                .getAbsolutePath()));
+        quota = Long.parseLong(params.getOrDefault("cacheQuota", "536870912"));
+        bufferSize = Integer.parseInt(params.getOrDefault("transferBufferSize", "65536"));
+    }
+
+    /**
+     * Copy file and hash copied bytes in one pass.
+     *
+     * @return hash of copied bytes
+     */
+    private String copyHashed(final File source, final File target) throws IOException {
+        final MessageDigest digest = newDigest();
+        final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target.toPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Create store directory, permissions of existing directory are restricted
+     * too, so directory of other user is not used.
+     */
+    private void createDirectory() throws IOException {
+        final Path path = directory.toPath();
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(path);
+            return;
+        }
+        final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString(DIRECTORY_PERMISSIONS);
+        Files.createDirectories(path, PosixFilePermissions.asFileAttribute(permissions));
+        Files.setPosixFilePermissions(path, permissions);
+    }
+
+    private File dbFile(final String key) {
+        return new File(directory, key + DB_SUFFIX);
+    }
+
+    private void delete(final String key) {
+        dbFile(key).delete();
+        infoFile(key).delete();
+    }
+
+    private void evict(final String keep) {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(DB_SUFFIX));
+        if (null == files) {
+            return;
+        }
+        long total = Arrays.stream(files).mapToLong(File::length).sum();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (final File file : files) {
+            if (total <= quota) {
+                break;
+            }
+            final String key = file.getName().substring(0, file.getName().length() - DB_SUFFIX.length());
+            if (!key.equals(keep)) {
+                log.debug("Evict stored db {}", file);
+                total -= file.length();
+                delete(key);
+            }
+        }
+    }
+
+    private File infoFile(final String key) {
+        return new File(directory, key + INFO_SUFFIX);
+    }
+
+    private String key(final String deviceIdentifier, final String packageName, final String dbPath) {
+        return toHex(newDigest()
+                .digest(String.join("\n", deviceIdentifier, packageName, dbPath).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Copy stored db to target file if entry exists and its copy is not
+     * corrupted, copy is hashed while it is written.
+     *
+     * @return state of device db at moment when entry was stored
+     */
+    public Optional<StoredDb> load(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final String dbPath, @NonNull final File target) {
+        log.debug("Called");
+        if (!enabled) {
+            return Optional.empty();
+        }
+        final String key = key(deviceIdentifier, packageName, dbPath);
+        final File dbFile = dbFile(key);
+        final File infoFile = infoFile(key);
+        if (!dbFile.isFile() || !infoFile.isFile()) {
+            return Optional.empty();
+        }
+        try {
+            final Properties info = new Properties();
+            try (InputStream in = Files.newInputStream(infoFile.toPath())) {
+                info.load(in);
+            }
+            if (!copyHashed(dbFile, target).equals(info.getProperty("hash"))) {
+                log.warn("Stored db {} is corrupted and will be deleted", dbFile);
+                delete(key);
+                return Optional.empty();
+            }
+            dbFile.setLastModified(System.currentTimeMillis());
+            log.debug("Stored db {} loaded to {}", dbFile, target);
+            return Optional.of(new StoredDb(info.getProperty("serial"),
+                    Long.parseLong(info.getProperty("size")),
+                    OffsetDateTime.parse(info.getProperty("modified"))));
+        } catch (final IOException | RuntimeException e) {
+            log.warn("Unable to load stored db {} with error [{}]", dbFile, e);
+            delete(key);
+            return Optional.empty();
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to create " + HASH_ALGORITHM + " digest", e);
+        }
+    }
+
+    /**
+     * Store copy of device db, replacing previous entry. Store errors are
+     * logged and do not fail fetching.
+     *
+     * @param source host copy of device db
+     */
+    public void save(@NonNull final String deviceIdentifier, @NonNull final String packageName,
+            @NonNull final String dbPath, @NonNull final StoredDb state, @NonNull final File source) {
+        log.debug("Called");
+        if (!enabled) {
+            return;
+        }
+        final String key = key(deviceIdentifier, packageName, dbPath);
+        File tmpFile = null;
+        File tmpInfoFile = null;
+        try {
+            createDirectory();
+            tmpFile = Files.createTempFile(directory.toPath(), key, ".tmp").toFile();
+            final String hash = copyHashed(source, tmpFile);
+            final Properties info = new Properties();
+            info.setProperty("device", deviceIdentifier);
+            info.setProperty("package", packageName);
+            info.setProperty("path", dbPath);
+            info.setProperty("serial", state.getSerial());
+            info.setProperty("size", String.valueOf(state.getSize()));
+            info.setProperty("modified", state.getModified().toString());
+            info.setProperty("hash", hash);
+            tmpInfoFile = Files.createTempFile(directory.toPath(), key, ".tmp").toFile();
+            try (OutputStream out = Files.newOutputStream(tmpInfoFile.toPath())) {
+                info.store(out, null);
+            }
+            infoFile(key).delete();
+            Files.move(tmpFile.toPath(), dbFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpInfoFile.toPath(), infoFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Db {} stored as {}", dbPath, dbFile(key));
+            evict(key);
+        } catch (final IOException | RuntimeException e) {
+            log.warn("Unable to store db {} with error [{}]", dbPath, e);
+            if (null != tmpFile) {
+                tmpFile.delete();
+            }
+            if (null != tmpInfoFile) {
+                tmpInfoFile.delete();
+            }
+            delete(key);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * State of device db which stored copy corresponds to.
+     */
+    @Value
+    public static class StoredDb {
+        String serial;
+        long size;
+        OffsetDateTime modified;
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.anyqn.adbjdbc.Snapshot;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Idle prepared statements of one connection, keyed by sql. Statements belong
+ * to one snapshot generation, all idle statements are closed when newer
+ * snapshot appears.
+ */
+@Slf4j
+public class StatementCache {
+    private final int maxStatements;
+    private final Map<String, Deque<PreparedStatement>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation;
+    private int size;
+
+    public StatementCache(final int maxStatements) {
+        log.debug("Called");
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * @return idle statement prepared on snapshot connection or null
+     */
+    public synchronized PreparedStatement borrow(@NonNull final Snapshot snapshot, @NonNull final String sql) {
+        log.debug("Called");
+        if (!isActual(snapshot)) {
+            return null;
+        }
+        final Deque<PreparedStatement> statements = idle.get(sql);
+        if (null == statements || statements.isEmpty()) {
+            return null;
+        }
+        size--;
+        log.debug("Reuse prepared statement of generation {} for sql {}", generation, sql);
+        return statements.pop();
+    }
+
+    public synchronized void close() {
+        log.debug("Called");
+        for (final Deque<PreparedStatement> statements : idle.values()) {
+            statements.forEach(this::close);
+        }
+        idle.clear();
+        size = 0;
+    }
+
+    private void close(final PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (final SQLException e) {
+            log.error("Unable to close cached statement with error [{}]", e);
+        }
+    }
+
+    private void evict() {
+        final Iterator<Entry<String, Deque<PreparedStatement>>> iterator = idle.entrySet().iterator();
+        while (size > maxStatements && iterator.hasNext()) {
+            final Deque<PreparedStatement> statements = iterator.next().getValue();
+            while (size > maxStatements && !statements.isEmpty()) {
+                close(statements.removeLast());
+                size--;
+            }
+            if (statements.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Return statement to cache, statement of old snapshot is closed.
+     */
+    public synchronized void giveBack(@NonNull final Snapshot snapshot, @NonNull final String sql,
+            @NonNull final PreparedStatement statement) {
+        log.debug("Called");
+        if (!isActual(snapshot)) {
+            close(statement);
+            return;
+        }
+        try {
+            statement.clearParameters();
+            statement.clearBatch();
+        } catch (final SQLException e) {
+            close(statement);
+            return;
+        }
+        idle.computeIfAbsent(sql, k -> new ArrayDeque<>()).push(statement);
+        size++;
+        evict();
+    }
+
+    private boolean isActual(final Snapshot snapshot) {
+        if (snapshot.getGeneration() > generation) {
+            log.debug("Drop cached statements of generation {}", generation);
+            close();
+            generation = snapshot.getGeneration();
+        }
+        return snapshot.getGeneration() == generation;
+    }
+}
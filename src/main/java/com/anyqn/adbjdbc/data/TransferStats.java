@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import lombok.Value;
+
+/**
+ * Statistics of one file transfer from device.
+ */
+@Value
+public class TransferStats {
+    String codec;
+    long fileBytes;
+    long wireBytes;
+    long millis;
+
+    public double getRatio() {
+        return wireBytes == 0 ? 1 : (double) fileBytes / wireBytes;
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Host mirror of SQLite {@code -wal} file. While WAL header salts are the same
+ * WAL is only appended, so only new frames after last mirrored offset are
+ * pulled. Changed salts mean checkpoint reset of WAL, in this case WAL is
+ * pulled again and main db file should be synchronized too.
+ */
+@Slf4j
+public class WalSync {
+    public static final int HEADER_SIZE = 32;
+    private static final int SALTS_OFFSET = 16;
+    private static final int SALTS_SIZE = 8;
+
+    @Getter
+    private final boolean enabled;
+    private final int bufferSize;
+    private File mirror;
+    private long offset;
+    private byte[] salts;
+
+    public WalSync(final boolean enabled, final int bufferSize) {
+        log.debug("Called");
+        this.enabled = enabled;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Forget synchronized state and delete host mirror of WAL.
+     */
+    public void clear() throws IOException {
+        log.debug("Called");
+        offset = 0;
+        salts = null;
+        if (null != mirror) {
+            Files.deleteIfExists(mirror.toPath());
+            mirror = null;
+        }
+    }
+
+    /**
+     * Copy mirrored WAL next to snapshot of main db file, SQLite applies it on
+     * open.
+     *
+     * @param dbFile snapshot of main db file
+     */
+    public void copyTo(@NonNull final File dbFile) throws IOException {
+        log.debug("Called");
+        if (null != mirror && offset > 0) {
+            Files.copy(mirror.toPath(), walOf(dbFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private byte[] getSalts(final byte[] header) {
+        return null == header ? null : Arrays.copyOfRange(header, SALTS_OFFSET, SALTS_OFFSET + SALTS_SIZE);
+    }
+
+    /**
+     * Check is WAL on device reset (or removed) since last synchronization.
+     *
+     * @param size   WAL size on device, negative if WAL is absent
+     * @param header first {@link #HEADER_SIZE} bytes of WAL or null
+     */
+    public boolean isReset(final long size, final byte[] header) {
+        log.debug("Called");
+        if (!enabled || null == salts) {
+            return false;
+        }
+        return null == header || size < offset || !Arrays.equals(salts, getSalts(header));
+    }
+
+    private void pullTail(final JadbDevice device, final String packageName, final String walPath, final long size)
+            throws IOException, JadbException {
+        log.debug("Called for {} from offset {} to {}", walPath, offset, size);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        try (InputStream in = device.execute(String.format("run-as %s sh -c 'tail -c +%d %s | head -c %d'",
+                packageName,
+                offset + 1,
+                walPath,
+                size - offset));
+                ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel destination = FileChannel.open(mirror.toPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)) {
+            destination.truncate(offset);
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    offset += destination.write(buffer, offset);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Pull WAL frames appended since last synchronization, or whole WAL after
+     * reset.
+     *
+     * @return true if mirrored WAL changed
+     */
+    public boolean sync(@NonNull final JadbDevice device, @NonNull final String packageName,
+            @NonNull final String walPath, final long size, final byte[] header) throws IOException, JadbException {
+        log.debug("Called");
+        if (!enabled) {
+            return false;
+        }
+        if (null == header) {
+            final boolean changed = null != salts;
+            clear();
+            return changed;
+        }
+        if (isReset(size, header)) {
+            log.debug("WAL {} reset by checkpoint", walPath);
+            clear();
+        }
+        if (null == mirror) {
+            mirror = Files.createTempFile(new File(walPath).getName(), ".mirror").toFile();
+        }
+        salts = getSalts(header);
+        if (size == offset) {
+            return false;
+        }
+        pullTail(device, packageName, walPath, size);
+        log.debug("WAL mirrored up to offset {}", offset);
+        return true;
+    }
+
+    /**
+     * @param dbFile main db file
+     * @return WAL file of db
+     */
+    public static File walOf(@NonNull final File dbFile) {
+        return new File(dbFile.getAbsolutePath() + "-wal");
+    }
+}
@@ -15,43 +15,87 @@
  ******************************************************************************/
 package com.anyqn.adbjdbc.meta;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
 
+import com.anyqn.adbjdbc.AdaptiveScheduler;
+import com.anyqn.adbjdbc.DeviceRegistry;
+
 import lombok.NonNull;
 import lombok.experimental.Delegate;
 import lombok.extern.slf4j.Slf4j;
-import se.vidstige.jadb.JadbConnection;
 
+/**
+ * Connection to metadata db. Metadata db is temporary file in WAL mode:
+ * fetching task writes to it by separate connection, so reader always sees
+ * last committed metadata and is not blocked by refresh.
+ */
 @Slf4j
 public class AdbMetadataConnection implements java.sql.Connection {
+    private static final String[] SQLITE_FILE_SUFFIXES = { "", "-wal", "-shm", "-journal" };
 
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private AdaptiveScheduler scheduler;
+    private MetaDataFetchingTask fetchingTask;
+    private final DeviceRegistry deviceRegistry;
+    private Runnable wakeUp;
+    private final long lazyScanTimeout;
+    private File metadataDbFile;
+    private Connection writerConnection;
     @Delegate
     private Connection dbConnection;
 
     public AdbMetadataConnection(@NonNull final String deviceName, final String packageName,
-            final Map<String, String> params, @NonNull final JadbConnection jadb) throws SQLException {
+            final Map<String, String> params, @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
         log.debug("Called");
+        this.deviceRegistry = deviceRegistry;
+        lazyScanTimeout = Long.parseLong(params.getOrDefault("lazyScanTimeout", "30000"));
         createMetadataDb(createMetadataDbConnection());
-        startMetadataPooling(createPoolingTask(deviceName, packageName, params, jadb),
-                Long.valueOf(params.getOrDefault("initialDelay", "0")),
-                Long.valueOf(params.getOrDefault("period", "60000")));
+        dbConnection = DriverManager.getConnection("jdbc:sqlite:" + metadataDbFile.getAbsolutePath());
+        startMetadataPooling(createPoolingTask(deviceName, packageName, params, deviceRegistry),
+                params,
+                Long.valueOf(params.getOrDefault("initialDelay", "0")));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        log.debug("Called");
+        deviceRegistry.removeListener(wakeUp);
+        scheduler.stop();
+        fetchingTask.close();
+        try {
+            dbConnection.close();
+            writerConnection.close();
+        } finally {
+            for (final String suffix : SQLITE_FILE_SUFFIXES) {
+                new File(metadataDbFile.getAbsolutePath() + suffix).delete();
+            }
+        }
     }
 
+    /**
+     * Create metadata db schema. Metadata db is new temporary file of every
+     * connection, so schema is always created from scratch.
+     */
     private void createMetadataDb(final Connection connection) throws SQLException {
         log.debug("Called");
-        try (Statement statement = dbConnection.createStatement()) {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("pragma journal_mode=wal");
+            statement.executeUpdate("pragma synchronous=off");
+            statement.executeUpdate("pragma foreign_keys=on");
             final String metadataSql = IOUtils
                     .resourceToString("metadata-db.sql", Charset.defaultCharset(), getClass().getClassLoader());
             log.debug("Execute metadata query \n{}", metadataSql);
@@ -61,23 +105,117 @@ public class AdbMetadataConnection implements java.sql.Connection {
         }
     }
 
+    @Override
+    public Statement createStatement() throws SQLException {
+        return DemandingStatement.create(this, dbConnection.createStatement(), this::demandPackages);
+    }
+
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
+        return DemandingStatement.create(this,
+                dbConnection.createStatement(resultSetType, resultSetConcurrency),
+                this::demandPackages);
+    }
+
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency,
+            final int resultSetHoldability) throws SQLException {
+        return DemandingStatement.create(this,
+                dbConnection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability),
+                this::demandPackages);
+    }
+
     private Connection createMetadataDbConnection() throws SQLException {
         log.debug("Called");
-        dbConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
-        return dbConnection;
+        try {
+            metadataDbFile = File.createTempFile("adb-jdbc-metadata", ".db");
+            metadataDbFile.deleteOnExit();
+        } catch (final IOException e) {
+            throw new SQLException("Unable to create metadata db file", e);
+        }
+        writerConnection = DriverManager.getConnection("jdbc:sqlite:" + metadataDbFile.getAbsolutePath());
+        return writerConnection;
+    }
+
+    /**
+     * Wait until files of packages named in query are scanned, in lazy scan
+     * mode files of package are scanned only after first query to it.
+     */
+    private void demandPackages(final Collection<String> texts) throws SQLException {
+        final CompletableFuture<Void> scan = fetchingTask.demand(texts);
+        if (scan.isDone()) {
+            return;
+        }
+        log.debug("Wait for scan of packages requested by query");
+        scheduler.wakeUp();
+        try {
+            scan.get(lazyScanTimeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            log.warn("Package scan is not finished in {} ms, query uses partial metadata", lazyScanTimeout);
+        } catch (final ExecutionException e) {
+            throw new SQLException("Unable to scan packages", e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for package scan", e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql) throws SQLException {
+        return DemandingStatement.prepare(this, dbConnection.prepareStatement(sql), sql, this::demandPackages);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
+        return DemandingStatement
+                .prepare(this, dbConnection.prepareStatement(sql, autoGeneratedKeys), sql, this::demandPackages);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType,
+            final int resultSetConcurrency) throws SQLException {
+        return DemandingStatement.prepare(this,
+                dbConnection.prepareStatement(sql, resultSetType, resultSetConcurrency),
+                sql,
+                this::demandPackages);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType,
+            final int resultSetConcurrency, final int resultSetHoldability) throws SQLException {
+        return DemandingStatement.prepare(this,
+                dbConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
+                sql,
+                this::demandPackages);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
+        return DemandingStatement
+                .prepare(this, dbConnection.prepareStatement(sql, columnIndexes), sql, this::demandPackages);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
+        return DemandingStatement
+                .prepare(this, dbConnection.prepareStatement(sql, columnNames), sql, this::demandPackages);
     }
 
     private MetaDataFetchingTask createPoolingTask(@NonNull final String deviceIdentifier,
             @NonNull final String packageName, @NonNull final Map<String, String> params,
-            @NonNull final JadbConnection jadb) throws SQLException {
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
         log.debug("Called try to start with package name {} and db name {}", packageName);
-        return new MetaDataFetchingTask(deviceIdentifier, packageName, params, dbConnection, jadb);
+        return new MetaDataFetchingTask(deviceIdentifier, packageName, params, writerConnection, deviceRegistry);
     }
 
-    private void startMetadataPooling(final MetaDataFetchingTask dataFetchingTask, final long initialDelay,
-            final long period) {
+    private void startMetadataPooling(final MetaDataFetchingTask dataFetchingTask,
+            final Map<String, String> params, final long initialDelay) {
         log.debug("Called");
-        executor.scheduleWithFixedDelay(dataFetchingTask, initialDelay, period, TimeUnit.MILLISECONDS);
+        fetchingTask = dataFetchingTask;
+        scheduler = new AdaptiveScheduler(dataFetchingTask, params);
+        wakeUp = scheduler::wakeUp;
+        deviceRegistry.addListener(wakeUp);
+        scheduler.start(initialDelay);
     }
 
 }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.meta;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.anyqn.adbjdbc.util.ConsumerWithException;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Statement of metadata connection which reports string literals and string
+ * parameters of query before it is executed, so metadata of packages used by
+ * query can be loaded on demand.
+ */
+@Slf4j
+public class DemandingStatement implements InvocationHandler {
+    private static final Pattern STRING_LITERAL = Pattern.compile("'((?:[^']|'')*)'");
+    private static final Set<String> PARAMETER_METHODS = Set.of("setString", "setNString", "setObject");
+
+    private final Connection owner;
+    private final Statement delegate;
+    private final List<String> literals;
+    private final Map<Integer, String> parameters = new TreeMap<>();
+    private final ConsumerWithException<Collection<String>, SQLException> listener;
+
+    private DemandingStatement(@NonNull final Connection owner, @NonNull final Statement delegate,
+            final String sql, @NonNull final ConsumerWithException<Collection<String>, SQLException> listener) {
+        this.owner = owner;
+        this.delegate = delegate;
+        literals = null == sql ? List.of() : literals(sql);
+        this.listener = listener;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass().equals(Object.class)) {
+            return method.invoke(this, args);
+        }
+        final String name = method.getName();
+        if ("getConnection".equals(name)) {
+            return owner;
+        }
+        if (name.startsWith("execute")) {
+            final List<String> texts = new ArrayList<>(literals);
+            texts.addAll(parameters.values());
+            if (null != args && args.length > 0 && args[0] instanceof String) {
+                texts.addAll(literals((String) args[0]));
+            }
+            if (!texts.isEmpty()) {
+                listener.accept(texts);
+            }
+        } else if (PARAMETER_METHODS.contains(name) && args[1] instanceof String) {
+            parameters.put((Integer) args[0], (String) args[1]);
+        } else if ("clearParameters".equals(name)) {
+            parameters.clear();
+        }
+        try {
+            return method.invoke(delegate, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<String> literals(final String sql) {
+        final List<String> result = new ArrayList<>();
+        final Matcher matcher = STRING_LITERAL.matcher(sql);
+        while (matcher.find()) {
+            result.add(matcher.group(1).replace("''", "'"));
+        }
+        return result;
+    }
+
+    /**
+     * @param owner    connection returned by {@link Statement#getConnection()}
+     * @param listener receives string literals and parameters of query before
+     *                 execution
+     */
+    public static PreparedStatement prepare(@NonNull final Connection owner,
+            @NonNull final PreparedStatement delegate, @NonNull final String sql,
+            @NonNull final ConsumerWithException<Collection<String>, SQLException> listener) {
+        return (PreparedStatement) Proxy.newProxyInstance(DemandingStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new DemandingStatement(owner, delegate, sql, listener));
+    }
+
+    /**
+     * @param owner    connection returned by {@link Statement#getConnection()}
+     * @param listener receives string literals of query before execution
+     */
+    public static Statement create(@NonNull final Connection owner, @NonNull final Statement delegate,
+            @NonNull final ConsumerWithException<Collection<String>, SQLException> listener) {
+        return (Statement) Proxy.newProxyInstance(DemandingStatement.class.getClassLoader(),
+                new Class<?>[] { Statement.class },
+                new DemandingStatement(owner, delegate, null, listener));
+    }
+}
@@ -19,23 +19,37 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import com.anyqn.adbjdbc.AbstractFetchingTask;
+import com.anyqn.adbjdbc.DeviceRegistry;
+import com.anyqn.adbjdbc.FetchResult;
+import com.anyqn.adbjdbc.SqliteHeader;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import se.vidstige.jadb.JadbConnection;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 
@@ -44,23 +58,56 @@ public class MetaDataFetchingTask extends AbstractFetchingTask {
     private final PreparedStatement deleteDevicesStatement;
     private PreparedStatement deletePackagesStatement;
     private PreparedStatement insertFileStatement;
+    private final PreparedStatement insertFileScopeStatement;
+    private final PreparedStatement insertDatabaseStatement;
     private final PreparedStatement insertDeviceStatement;
     private final PreparedStatement insertPackageStatement;
     private PreparedStatement deleteFilesStatement;
+    private final PreparedStatement scannedDevicesStatement;
+    private final String mergeScanSql;
+    private final String clearScanSql;
+    private final Connection metadataDbConnection;
+    private final int batchSize;
+    private final Map<PreparedStatement, Integer> batches = new LinkedHashMap<>();
+    private final PackageScanner scanner;
+    private final boolean lazyScan;
+    private final long packageTtl;
+    private final Map<String, Long> demanded = new ConcurrentHashMap<>();
+    private final Set<String> warm = ConcurrentHashMap.newKeySet();
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private volatile Set<String> knownPackages = Set.of();
 
     public MetaDataFetchingTask(@NonNull final String deviceIdentifier, @NonNull final String packageName,
             @NonNull final Map<String, String> params, @NonNull final Connection metadataDbConnection,
-            @NonNull final JadbConnection jadb) throws SQLException {
-        super(deviceIdentifier, packageName, params, jadb);
+            @NonNull final DeviceRegistry deviceRegistry) throws SQLException {
+        super(deviceIdentifier, packageName, params, deviceRegistry);
         log.debug("Called");
-        try {
+        this.metadataDbConnection = metadataDbConnection;
+        batchSize = Integer.parseInt(params.getOrDefault("metadataBatchSize", "1000"));
+        scanner = new PackageScanner(params);
+        lazyScan = Objects.equals(packageName, "*") && Boolean.parseBoolean(params.getOrDefault("lazyScan", "true"));
+        packageTtl = Long.parseLong(params.getOrDefault("packageTtl", "600000"));
+        try (Statement statement = metadataDbConnection.createStatement()) {
+            log.debug("Create scan staging tables");
+            statement.executeUpdate(IOUtils
+                    .resourceToString("metadata-scan.sql", Charset.defaultCharset(), getClass().getClassLoader()));
+            mergeScanSql = IOUtils
+                    .resourceToString("merge-scan.sql", Charset.defaultCharset(), getClass().getClassLoader());
+            clearScanSql = IOUtils
+                    .resourceToString("clear-scan.sql", Charset.defaultCharset(), getClass().getClassLoader());
             log.debug("Start to statement preparation");
+            scannedDevicesStatement = metadataDbConnection.prepareStatement(IOUtils
+                    .resourceToString("scanned-devices.sql", Charset.defaultCharset(), getClass().getClassLoader()));
             insertDeviceStatement = metadataDbConnection.prepareStatement(IOUtils
                     .resourceToString("insert-device.sql", Charset.defaultCharset(), getClass().getClassLoader()));
             insertPackageStatement = metadataDbConnection.prepareStatement(IOUtils
                     .resourceToString("insert-package.sql", Charset.defaultCharset(), getClass().getClassLoader()));
             insertFileStatement = metadataDbConnection.prepareStatement(
                     IOUtils.resourceToString("insert-file.sql", Charset.defaultCharset(), getClass().getClassLoader()));
+            insertFileScopeStatement = metadataDbConnection.prepareStatement(IOUtils
+                    .resourceToString("insert-file-scope.sql", Charset.defaultCharset(), getClass().getClassLoader()));
+            insertDatabaseStatement = metadataDbConnection.prepareStatement(IOUtils
+                    .resourceToString("insert-database.sql", Charset.defaultCharset(), getClass().getClassLoader()));
             deleteDevicesStatement = metadataDbConnection.prepareStatement(IOUtils
                     .resourceToString("delete-devices.sql", Charset.defaultCharset(), getClass().getClassLoader()));
             deletePackagesStatement = metadataDbConnection.prepareStatement(IOUtils
@@ -72,161 +119,302 @@ public class MetaDataFetchingTask extends AbstractFetchingTask {
         }
     }
 
-    protected boolean isDeviceAllowed(final JadbDevice device, final Optional<String> deviceName) {
-        log.debug("Called with device serial {} and device name {}", device.getSerial(), deviceName);
-        return Objects.equals(getDeviceIdentifier(), "*")
-                || Objects.equals(deviceName.orElse(null), getDeviceIdentifier())
-                || Objects.equals(device.getSerial(), getDeviceIdentifier());
+    /**
+     * Add statement parameters to batch, batch is executed when it reaches
+     * {@code metadataBatchSize}.
+     */
+    private void addBatch(final PreparedStatement statement) throws SQLException {
+        statement.addBatch();
+        final int size = batches.merge(statement, 1, Integer::sum);
+        if (size >= batchSize) {
+            statement.executeBatch();
+            batches.remove(statement);
+        }
     }
 
-    private List<String> readFilesList(final JadbDevice device, final String applicationDataPath,
-            final String applicationPackageName) throws IOException, JadbException {
-        final List<String> response = IOUtils.readLines(
-                device.executeShell(
-                        String.format("run-as %s ls -R -C -m -p %s", applicationPackageName, applicationDataPath)),
-                Charset.defaultCharset());
-        return response;
+    public void close() {
+        log.debug("Called");
+        scanner.close();
     }
 
-    @Override
-    public void run() {
-        log.debug("Called");
-        try {
-            log.debug("Get list of devices");
-            final List<JadbDevice> devices = getJadb().getDevices();
-            deletePackagesStatement.executeUpdate();
-            deleteDevicesStatement.executeUpdate();
-            deleteFilesStatement.executeUpdate();
-            for (final JadbDevice device : devices) {
-                log.debug("Process device with serial {}", device.getSerial());
-                final Optional<String> deviceName = updateDeviceInfo(device);
-                if (isDeviceAllowed(device, deviceName)) {
-                    final Map<String, String> applicationPathes = updatePackagesList(device, getPackageName());
-                    updateFilesList(device, applicationPathes);
+    /**
+     * Mark packages used by query. In lazy scan mode files are scanned only
+     * for packages used during last {@code packageTtl} ms.
+     *
+     * @param texts string literals and parameters of query, texts which are
+     *              not names of known packages are ignored
+     * @return future completed when files of newly used packages are scanned
+     */
+    public CompletableFuture<Void> demand(@NonNull final Collection<String> texts) {
+        if (!lazyScan) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long now = System.currentTimeMillis();
+        final List<CompletableFuture<Void>> scans = new ArrayList<>();
+        for (final String text : texts) {
+            if (knownPackages.contains(text)) {
+                demanded.put(text, now);
+                if (!warm.contains(text)) {
+                    log.debug("Package {} is requested by query", text);
+                    scans.add(pending.computeIfAbsent(text, k -> new CompletableFuture<>()));
                 }
             }
-        } catch (final Exception e) {
-            throw new IllegalStateException("Unable to get data from device:", e);
         }
+        return CompletableFuture.allOf(scans.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void executeBatches() throws SQLException {
+        for (final PreparedStatement statement : batches.keySet()) {
+            statement.executeBatch();
+        }
+        batches.clear();
     }
 
     /**
+     * Delete rows of devices which were not found by scan.
      *
-     * @param device
-     * @return device name
+     * @return count of deleted rows
      */
-    protected Optional<String> updateDeviceInfo(final JadbDevice device) {
-        log.debug("Called");
-        try {
-            final String deviceName = StringUtils
-                    .trim(IOUtils.toString(device.executeShell("getprop ro.product.model"), Charset.defaultCharset()));
-            log.debug("Found device with name [{}] and serial [{}]", deviceName, device.getSerial());
-            insertDeviceStatement.setString(1, deviceName);
-            insertDeviceStatement.setString(2, device.getSerial());
-            insertDeviceStatement.executeUpdate();
-            return Optional.of(deviceName);
-        } catch (final Exception e) {
-            log.error("Fetching data from device with serial [{}] get error [{}]", device.getSerial(), e);
-            return Optional.empty();
+    private int deleteDetachedDevices(final Set<String> serials) throws SQLException {
+        final List<String> detached = new ArrayList<>();
+        try (ResultSet resultSet = scannedDevicesStatement.executeQuery()) {
+            while (resultSet.next()) {
+                if (!serials.contains(resultSet.getString(1))) {
+                    detached.add(resultSet.getString(1));
+                }
+            }
         }
+        int changes = 0;
+        for (final String serial : detached) {
+            log.debug("Delete metadata of detached device {}", serial);
+            for (final PreparedStatement statement : List
+                    .of(deleteFilesStatement, deletePackagesStatement, deleteDevicesStatement)) {
+                statement.setString(1, serial);
+                changes += statement.executeUpdate();
+            }
+        }
+        return changes;
     }
 
-    private void updateFilesList(final JadbDevice device, final Map<String, String> applicationPathes) {
+    /**
+     * Scan devices in parallel and merge every device scan into metadata
+     * tables in separate transaction of this (single writer) thread: only
+     * changed rows are written, readers see previous rows of device until its
+     * scan is committed. In lazy scan mode files are scanned only for packages
+     * used by queries.
+     */
+    @Override
+    public FetchResult fetch() throws IOException, JadbException, SQLException, InterruptedException {
         log.debug("Called");
-        for (final Entry<String, String> path : applicationPathes.entrySet()) {
-            try {
-                final String applicationDataPath = path.getValue();
-                final String applicationPackageName = path.getKey();
-                log.debug("Application data path is {} package name is {}",
-                        applicationDataPath,
-                        applicationPackageName);
-
-                final List<String> response = readFilesList(device, applicationDataPath, applicationPackageName);
-
-                String lastPath = null;
-
-                for (final String line : response) {
-                    log.debug("File list string {}", line);
-                    if (!line.startsWith("run-as: package not debuggable")
-                            && !line.endsWith("No such file or directory")) {
-                        if (line.startsWith(applicationDataPath) && line.endsWith(":")) {
-                            log.debug("Is path");
-                            lastPath = line.substring(0, line.length() - 1);
-                        } else {
-                            log.debug("Is files list");
-                            final String[] files = line.split(",");
-                            for (final String fileName : files) {
-                                final String trimmedFileName = StringUtils.trim(fileName);
-                                if (StringUtils.isNotBlank(trimmedFileName) && !trimmedFileName.endsWith("/")) {
-                                    log.debug("Process file name {}", trimmedFileName);
-                                    insertFileStatement.setString(1, device.getSerial());
-                                    insertFileStatement.setString(2, applicationPackageName);
-                                    insertFileStatement.setString(3, lastPath);
-                                    insertFileStatement.setString(4, trimmedFileName);
-                                    insertFileStatement.setString(5, lastPath + "/" + trimmedFileName);
-                                    insertFileStatement.executeUpdate();
-                                }
-                            }
-                        }
+        final long now = System.currentTimeMillis();
+        demanded.values().removeIf(lastUsed -> now - lastUsed > packageTtl);
+        warm.retainAll(demanded.keySet());
+        final Set<String> targets = Set.copyOf(demanded.keySet());
+
+        log.debug("Get list of devices");
+        final List<DeviceRegistry.DeviceInfo> devices = getDeviceRegistry().getDevices();
+        final Map<JadbDevice, Future<Map<String, String>>> packageLists = new LinkedHashMap<>();
+        final Map<String, Optional<String>> deviceNames = new HashMap<>();
+        for (final DeviceRegistry.DeviceInfo deviceInfo : devices) {
+            final JadbDevice device = deviceInfo.getDevice();
+            final Optional<String> deviceName = deviceInfo.getModel();
+            deviceNames.put(device.getSerial(), deviceName);
+            if (isDeviceAllowed(device, deviceName)) {
+                packageLists.put(device, scanner.listPackages(device, getPackageName()));
+            }
+        }
+        final Map<JadbDevice, Map<String, String>> packages = new HashMap<>();
+        final Set<String> names = new HashSet<>();
+        // device with failed package list keeps its previous rows until next
+        // successful scan instead of being merged as device without packages
+        final Set<String> failed = new HashSet<>();
+        for (final Entry<JadbDevice, Future<Map<String, String>>> packageList : packageLists.entrySet()) {
+            final Map<String, String> paths = getResult(packageList.getKey(), packageList.getValue(), null);
+            if (null == paths) {
+                failed.add(packageList.getKey().getSerial());
+                continue;
+            }
+            packages.put(packageList.getKey(), paths);
+            names.addAll(paths.keySet());
+        }
+        if (!failed.isEmpty()) {
+            names.addAll(knownPackages);
+        }
+        knownPackages = names;
+        final Map<JadbDevice, List<Future<Optional<PackageScanner.PackageScan>>>> scans = submitScans(packages,
+                lazyScan ? targets::contains : p -> true);
+
+        final Set<String> serials = new HashSet<>();
+        int changes = 0;
+        metadataDbConnection.setAutoCommit(false);
+        try (Statement statement = metadataDbConnection.createStatement()) {
+            for (final DeviceRegistry.DeviceInfo deviceInfo : devices) {
+                final JadbDevice device = deviceInfo.getDevice();
+                log.debug("Process device with serial {}", device.getSerial());
+                serials.add(device.getSerial());
+                if (failed.contains(device.getSerial())) {
+                    log.debug("Keep metadata of device {} after failed scan", device.getSerial());
+                    continue;
+                }
+                updateDeviceInfo(device, deviceNames.get(device.getSerial()));
+                for (final Entry<String, String> packagePath : packages.getOrDefault(device, Map.of()).entrySet()) {
+                    writePackage(device, packagePath.getKey(), packagePath.getValue());
+                }
+                for (final Future<Optional<PackageScanner.PackageScan>> scan : scans.getOrDefault(device,
+                        List.of())) {
+                    final Optional<PackageScanner.PackageScan> packageScan = getResult(device,
+                            scan,
+                            Optional.empty());
+                    if (packageScan.isPresent()) {
+                        writeFiles(device, packageScan.get());
                     }
                 }
-            } catch (final Exception e) {
-                log.error("Fetching files from device with serial [{}] get error [{}]", device.getSerial(), e);
+                executeBatches();
+                changes += statement.executeUpdate(mergeScanSql);
+                statement.executeUpdate(clearScanSql);
+                metadataDbConnection.commit();
             }
+            changes += deleteDetachedDevices(serials);
+            metadataDbConnection.commit();
+        } catch (final SQLException | RuntimeException | InterruptedException e) {
+            scans.values().forEach(l -> l.forEach(f -> f.cancel(true)));
+            batches.keySet().forEach(this::clearBatch);
+            batches.clear();
+            metadataDbConnection.rollback();
+            throw e;
+        } finally {
+            metadataDbConnection.setAutoCommit(true);
+        }
+        warm.addAll(targets);
+        for (final String target : targets) {
+            final CompletableFuture<Void> scan = pending.remove(target);
+            if (null != scan) {
+                scan.complete(null);
+            }
+        }
+        log.debug("Metadata refreshed with {} changed rows", changes);
+        if (packageLists.isEmpty()) {
+            return FetchResult.DEVICE_ABSENT;
         }
+        return changes > 0 || !pending.isEmpty() ? FetchResult.CHANGED : FetchResult.UNCHANGED;
     }
 
-    protected Map<String, String> updatePackagesList(@NonNull final JadbDevice device,
-            final String allowedPackageName) {
-        log.debug("Called");
-        final Map<String, String> paths = new HashMap<>();
+    private <R> R getResult(final JadbDevice device, final Future<R> future, final R fallback)
+            throws InterruptedException {
         try {
-            List<String> packagesList;
-            log.debug("Allowed package name is {}", allowedPackageName);
-            if (Objects.equals(allowedPackageName, "*")) {
-                packagesList = IOUtils.readLines(device.executeShell("pm list packages -3"), Charset.defaultCharset());
-            } else {
-                packagesList = List.of("package:" + allowedPackageName);
-            }
-            for (final String pkgStr : packagesList) {
-                log.debug("Process package {}", pkgStr);
-                final String packageName = pkgStr.substring(8);
-
-                final List<String> response = readFilesList(device, "/data/data/" + packageName, packageName);
-                if (!response.isEmpty() && !response.get(0).startsWith("run-as: package not debuggable:")) {
-                    final List<String> dumpPackageInfo = IOUtils
-                            .readLines(device.executeShell("dumpsys package " + packageName), Charset.defaultCharset());
-                    log.trace("Found package info {}", dumpPackageInfo);
-                    // dataDir=/data/user/0/com.amazon.mShop.android.shopping
-                    final String dataDirProperty = dumpPackageInfo.stream()
-                            .filter(l -> l.contains("dataDir"))
-                            .findFirst()
-                            .orElseThrow(() -> new NoSuchElementException(
-                                    String.format("Data dir not found {}", dumpPackageInfo)));
-                    log.debug("Application data dir property is {}", dataDirProperty);
-                    final String[] splittedProperty = dataDirProperty.split("=");
-                    if (splittedProperty.length != 2) {
-                        throw new IllegalArgumentException(
-                                String.format("Error in data dir parsing {}", dataDirProperty));
-                    }
+            return future.get();
+        } catch (final ExecutionException e) {
+            log.error("Fetching data from device with serial [{}] get error [{}]", device.getSerial(), e.getCause());
+            return fallback;
+        }
+    }
 
-                    final String applicationDataPath = StringUtils.trim(splittedProperty[1]);
-                    log.debug("Application data path is {}", applicationDataPath);
-                    paths.put(packageName, applicationDataPath);
-                    log.debug("Found in allowed device [{}] package [{}] with path [{}]",
-                            device.getSerial(),
-                            packageName,
-                            applicationDataPath);
-                    insertPackageStatement.setString(1, device.getSerial());
-                    insertPackageStatement.setString(2, packageName);
-                    insertPackageStatement.setString(3, applicationDataPath);
-                    insertPackageStatement.executeUpdate();
+    /**
+     * Submit package scans of all devices in round robin order, so pool
+     * threads are not blocked by limit of one device.
+     *
+     * @param packages package names mapped to data dirs for every device
+     * @param filter   packages which files should be scanned
+     */
+    private Map<JadbDevice, List<Future<Optional<PackageScanner.PackageScan>>>> submitScans(
+            final Map<JadbDevice, Map<String, String>> packages, final Predicate<String> filter) {
+        final Map<JadbDevice, Iterator<Entry<String, String>>> iterators = new LinkedHashMap<>();
+        final Map<JadbDevice, List<Future<Optional<PackageScanner.PackageScan>>>> scans = new HashMap<>();
+        for (final Entry<JadbDevice, Map<String, String>> devicePackages : packages.entrySet()) {
+            iterators.put(devicePackages.getKey(),
+                    devicePackages.getValue()
+                            .entrySet()
+                            .stream()
+                            .filter(e -> filter.test(e.getKey()))
+                            .collect(Collectors.toList())
+                            .iterator());
+            scans.put(devicePackages.getKey(), new ArrayList<>());
+        }
+        boolean submitted = true;
+        while (submitted) {
+            submitted = false;
+            for (final Entry<JadbDevice, Iterator<Entry<String, String>>> devicePackages : iterators.entrySet()) {
+                if (devicePackages.getValue().hasNext()) {
+                    final Entry<String, String> packagePath = devicePackages.getValue().next();
+                    log.debug("Process package {}", packagePath.getKey());
+                    scans.get(devicePackages.getKey())
+                            .add(scanner.scanPackage(devicePackages.getKey(),
+                                    packagePath.getKey(),
+                                    packagePath.getValue()));
+                    submitted = true;
                 }
             }
+        }
+        return scans;
+    }
+
+    private void clearBatch(final PreparedStatement statement) {
+        try {
+            statement.clearBatch();
+        } catch (final SQLException e) {
+            log.error("Unable to clear batch with error [{}]", e);
+        }
+    }
 
-        } catch (final Exception e) {
-            log.error("Fetching packages from device with serial [{}] get error [{}]", device.getSerial(), e);
+    protected boolean isDeviceAllowed(final JadbDevice device, final Optional<String> deviceName) {
+        log.debug("Called with device serial {} and device name {}", device.getSerial(), deviceName);
+        return Objects.equals(getDeviceIdentifier(), "*")
+                || Objects.equals(deviceName.orElse(null), getDeviceIdentifier())
+                || Objects.equals(device.getSerial(), getDeviceIdentifier());
+    }
+
+    /**
+     *
+     * @param device
+     * @return device name
+     */
+    protected Optional<String> updateDeviceInfo(final JadbDevice device, final Optional<String> deviceName)
+            throws SQLException {
+        log.debug("Called");
+        if (deviceName.isPresent()) {
+            log.debug("Found device with name [{}] and serial [{}]", deviceName.get(), device.getSerial());
+            insertDeviceStatement.setString(1, deviceName.get());
+            insertDeviceStatement.setString(2, device.getSerial());
+            addBatch(insertDeviceStatement);
+        }
+        return deviceName;
+    }
+
+    private void writeFiles(final JadbDevice device, final PackageScanner.PackageScan scan) throws SQLException {
+        insertFileScopeStatement.setString(1, device.getSerial());
+        insertFileScopeStatement.setString(2, scan.getName());
+        addBatch(insertFileScopeStatement);
+        for (final PackageScanner.FileEntry file : scan.getFiles()) {
+            insertFileStatement.setString(1, device.getSerial());
+            insertFileStatement.setString(2, scan.getName());
+            insertFileStatement.setString(3, file.getPath());
+            insertFileStatement.setString(4, file.getName());
+            insertFileStatement.setString(5, file.getAbsolutePath());
+            insertFileStatement.setLong(6, file.getSize());
+            insertFileStatement.setLong(7, file.getModified());
+            insertFileStatement.setInt(8, file.getMode());
+            insertFileStatement.setBoolean(9, file.isSqlite());
+            addBatch(insertFileStatement);
+        }
+        for (final Entry<String, SqliteHeader> database : scan.getDatabases().entrySet()) {
+            insertDatabaseStatement.setString(1, device.getSerial());
+            insertDatabaseStatement.setString(2, scan.getName());
+            insertDatabaseStatement.setString(3, database.getKey());
+            insertDatabaseStatement.setInt(4, database.getValue().getPageSize());
+            insertDatabaseStatement.setLong(5, database.getValue().getPageCount());
+            insertDatabaseStatement.setLong(6, database.getValue().getFreelistCount());
+            insertDatabaseStatement.setLong(7, database.getValue().getSchemaCookie());
+            insertDatabaseStatement.setBoolean(8, database.getValue().isWalMode());
+            insertDatabaseStatement.setLong(9, database.getValue().getChangeCounter());
+            addBatch(insertDatabaseStatement);
         }
-        return paths;
+    }
+
+    private void writePackage(final JadbDevice device, final String packageName, final String path)
+            throws SQLException {
+        insertPackageStatement.setString(1, device.getSerial());
+        insertPackageStatement.setString(2, packageName);
+        insertPackageStatement.setString(3, path);
+        addBatch(insertPackageStatement);
     }
 }
@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.meta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.lang3.StringUtils;
+
+import com.anyqn.adbjdbc.SqliteHeader;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.With;
+import lombok.extern.slf4j.Slf4j;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+/**
+ * Reads packages and files of devices in parallel. Scanning runs in pool of
+ * {@code scanThreads} threads, at most {@code scanThreadsPerDevice} shell
+ * commands are run on one device at the same time. Headers of SQLite files
+ * are read by the same shell command which lists files. Scanner does not write to metadata db, results are
+ * written by caller.
+ */
+@Slf4j
+public class PackageScanner {
+    private static final String LIST_PACKAGES_SCRIPT = "for p in %s; do d=$(run-as $p pwd 2>/dev/null)"
+            + " && echo \"$p $d\"; done";
+    private static final String LIST_DIRS_SCRIPT = "find %s -type d -exec stat -c \"%%Y %%n\" {} +";
+    private static final String HEADER_MARK = "header ";
+    // "SQLite format 3" is 15 bytes, so base64 of header always starts with it
+    private static final String SQLITE_MAGIC_BASE64 = "U1FMaXRlIGZvcm1hdCAz";
+    private static final String READ_HEADER_SCRIPT = "h=$(head -c " + SqliteHeader.HEADER_SIZE
+            + " \"$f\" | base64 -w 0); case $h in " + SQLITE_MAGIC_BASE64 + "*) echo \"" + HEADER_MARK
+            + "$h $f\";; esac";
+    private static final String LIST_FILES_SCRIPT = "find %s%s ! -type d -exec stat -c \"%%f %%s %%Y %%n\" {} +;"
+            + " find %s%s -type f -size +0 -exec sh -c 'for f; do " + READ_HEADER_SCRIPT + "; done' sh {} +";
+    private static final String STAT_FILES_SCRIPT = "stat -c \"%%f %%s %%Y %%n\" %s 2>/dev/null;"
+            + " for f in %s; do [ -s \"$f\" ] || continue; " + READ_HEADER_SCRIPT + "; done";
+    private static final int DIRS_PER_COMMAND = 32;
+    private static final int FILES_PER_COMMAND = 64;
+
+    private final ExecutorService executor;
+    private final int threadsPerDevice;
+    private final Map<String, Semaphore> deviceLimits = new ConcurrentHashMap<>();
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+    public PackageScanner(@NonNull final Map<String, String> params) {
+        log.debug("Called");
+        executor = Executors.newFixedThreadPool(Integer.parseInt(params.getOrDefault("scanThreads", "8")));
+        threadsPerDevice = Integer.parseInt(params.getOrDefault("scanThreadsPerDevice", "2"));
+    }
+
+    public void close() {
+        log.debug("Called");
+        executor.shutdownNow();
+    }
+
+    /**
+     * List debuggable packages with their data dirs by one shell command:
+     * every package is probed by {@code run-as}, which starts in data dir of
+     * package. Output is parsed line by line while it is read.
+     *
+     * @param allowedPackageName package name or {@code *} for all third party
+     *                           packages
+     * @return future of package names mapped to data dirs
+     */
+    public Future<Map<String, String>> listPackages(@NonNull final JadbDevice device,
+            final String allowedPackageName) {
+        log.debug("Called");
+        return submit(device, () -> {
+            log.debug("Allowed package name is {}", allowedPackageName);
+            final String packages = Objects.equals(allowedPackageName, "*")
+                    ? "$(pm list packages -3 | cut -d: -f2)"
+                    : allowedPackageName;
+            final Map<String, String> paths = new LinkedHashMap<>();
+            try (InputStream in = device.executeShell(String.format(LIST_PACKAGES_SCRIPT, packages))) {
+                final LineIterator lines = IOUtils.lineIterator(in, Charset.defaultCharset());
+                while (lines.hasNext()) {
+                    final String[] line = StringUtils.split(StringUtils.trim(lines.next()), ' ');
+                    if (line.length == 2 && line[1].startsWith("/")) {
+                        log.debug("Found in device [{}] package [{}] with path [{}]",
+                                device.getSerial(),
+                                line[0],
+                                line[1]);
+                        paths.put(line[0], line[1]);
+                    }
+                }
+            }
+            return paths;
+        });
+    }
+
+    private Map<String, List<FileEntry>> listFiles(final JadbDevice device, final String packageName,
+            final List<String> dirs, final boolean recursive) throws IOException, JadbException {
+        final String paths = dirs.stream().map(PackageScanner::shellQuote).collect(Collectors.joining(" "));
+        final String depth = recursive ? "" : " -maxdepth 1";
+        return readFiles(device, packageName, String.format(LIST_FILES_SCRIPT, paths, depth, paths, depth));
+    }
+
+    /**
+     * Run script which prints {@code stat} lines of files and base64 headers of
+     * SQLite files marked by {@link #HEADER_MARK}.
+     *
+     * @return files by directory
+     */
+    private Map<String, List<FileEntry>> readFiles(final JadbDevice device, final String packageName,
+            final String script) throws IOException, JadbException {
+        final Map<String, List<FileEntry>> files = new HashMap<>();
+        final Map<String, byte[]> headers = new HashMap<>();
+        try (InputStream in = device
+                .executeShell(String.format("run-as %s sh -c %s", packageName, shellQuote(script)))) {
+            final LineIterator lines = IOUtils.lineIterator(in, Charset.defaultCharset());
+            while (lines.hasNext()) {
+                final String line = StringUtils.stripEnd(lines.next(), "\r\n");
+                log.trace("File list string {}", line);
+                if (line.startsWith(HEADER_MARK)) {
+                    final String[] header = line.substring(HEADER_MARK.length()).split(" ", 2);
+                    if (header.length == 2) {
+                        try {
+                            headers.put(header[1], Base64.getDecoder().decode(header[0]));
+                        } catch (final IllegalArgumentException e) {
+                            log.debug("Skip header of file {} with error [{}]", header[1], e.getMessage());
+                        }
+                    }
+                    continue;
+                }
+                final String[] stat = line.split(" ", 4);
+                if (stat.length != 4 || !StringUtils.isAlphanumeric(stat[0]) || !StringUtils.isNumeric(stat[1])
+                        || !StringUtils.isNumeric(stat[2])) {
+                    log.debug("Skip file list string {}", line);
+                    continue;
+                }
+                final String absolutePath = stat[3];
+                final int slash = absolutePath.lastIndexOf('/');
+                final String path = absolutePath.substring(0, Math.max(slash, 0));
+                files.computeIfAbsent(path, k -> new ArrayList<>())
+                        .add(new FileEntry(path,
+                                absolutePath.substring(slash + 1),
+                                Long.parseLong(stat[1]),
+                                Long.parseLong(stat[2]),
+                                Integer.parseInt(stat[0], 16),
+                                null));
+            }
+        }
+        if (!headers.isEmpty()) {
+            files.replaceAll((path, entries) -> entries.stream()
+                    .map(e -> headers.containsKey(e.getAbsolutePath())
+                            ? e.withHeader(SqliteHeader.parse(headers.get(e.getAbsolutePath()), e.getSize())
+                                    .orElse(null))
+                            : e)
+                    .collect(Collectors.toList()));
+        }
+        return files;
+    }
+
+    /**
+     * Stat known files by one shell command per {@link #FILES_PER_COMMAND}
+     * files. Size, modification time and header of file change without change
+     * of its directory, only headers of known SQLite files are read again.
+     *
+     * @return files by directory, deleted files are absent
+     */
+    private Map<String, List<FileEntry>> restatFiles(final JadbDevice device, final String packageName,
+            final List<FileEntry> known) throws IOException, JadbException {
+        final Map<String, List<FileEntry>> files = new HashMap<>();
+        for (int i = 0; i < known.size(); i += FILES_PER_COMMAND) {
+            final List<FileEntry> chunk = known.subList(i, Math.min(known.size(), i + FILES_PER_COMMAND));
+            final String paths = chunk.stream()
+                    .map(FileEntry::getAbsolutePath)
+                    .map(PackageScanner::shellQuote)
+                    .collect(Collectors.joining(" "));
+            final String sqlitePaths = chunk.stream()
+                    .filter(FileEntry::isSqlite)
+                    .map(FileEntry::getAbsolutePath)
+                    .map(PackageScanner::shellQuote)
+                    .collect(Collectors.joining(" "));
+            readFiles(device, packageName, String.format(STAT_FILES_SCRIPT, paths, sqlitePaths))
+                    .forEach((dir, entries) -> files.computeIfAbsent(dir, k -> new ArrayList<>()).addAll(entries));
+        }
+        return files;
+    }
+
+    private Map<String, Long> readDirs(final JadbDevice device, final String packageName,
+            final String applicationDataPath) throws IOException, JadbException {
+        final Map<String, Long> dirs = new LinkedHashMap<>();
+        try (InputStream in = device.executeShell(String.format("run-as %s sh -c %s",
+                packageName,
+                shellQuote(String.format(LIST_DIRS_SCRIPT, shellQuote(applicationDataPath)))))) {
+            final LineIterator lines = IOUtils.lineIterator(in, Charset.defaultCharset());
+            while (lines.hasNext()) {
+                final String[] dir = StringUtils.stripEnd(lines.next(), "\r\n").split(" ", 2);
+                if (dir.length == 2 && StringUtils.isNumeric(dir[0])) {
+                    dirs.put(dir[1], Long.parseLong(dir[0]));
+                }
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Read files of package. Directories are listed first, files are listed
+     * only in directories with changed modification time since last scan of
+     * package, known files of other directories are only stat again. Errors
+     * are logged, they do not break scanning of other packages.
+     *
+     * @param applicationDataPath data dir of package
+     * @return future of scan, empty if scan failed
+     */
+    public Future<Optional<PackageScan>> scanPackage(@NonNull final JadbDevice device,
+            @NonNull final String packageName, @NonNull final String applicationDataPath) {
+        log.debug("Called");
+        return submit(device, () -> {
+            try {
+                return Optional.of(scanPackageFiles(device, packageName, applicationDataPath));
+            } catch (final IOException | JadbException | RuntimeException e) {
+                log.error("Fetching package [{}] from device with serial [{}] get error [{}]",
+                        packageName,
+                        device.getSerial(),
+                        e);
+                listings.remove(device.getSerial() + "/" + packageName);
+                return Optional.empty();
+            }
+        });
+    }
+
+    private PackageScan scanPackageFiles(final JadbDevice device, final String packageName,
+            final String applicationDataPath) throws IOException, JadbException {
+        final String key = device.getSerial() + "/" + packageName;
+        final Map<String, Long> dirs = readDirs(device, packageName, applicationDataPath);
+        final Listing previous = listings.get(key);
+        final Map<String, List<FileEntry>> files;
+        if (null == previous || !previous.getPath().equals(applicationDataPath)) {
+            log.debug("List all files of package {}", packageName);
+            files = listFiles(device, packageName, List.of(applicationDataPath), true);
+        } else {
+            files = new HashMap<>();
+            final List<String> changed = new ArrayList<>();
+            final List<FileEntry> known = new ArrayList<>();
+            for (final Entry<String, Long> dir : dirs.entrySet()) {
+                if (dir.getValue().equals(previous.getDirs().get(dir.getKey()))) {
+                    files.put(dir.getKey(), new ArrayList<>());
+                    known.addAll(previous.getFiles().getOrDefault(dir.getKey(), List.of()));
+                } else {
+                    changed.add(dir.getKey());
+                }
+            }
+            log.debug("Package {} has {} changed directories of {}", packageName, changed.size(), dirs.size());
+            restatFiles(device, packageName, known)
+                    .forEach((dir, entries) -> files.computeIfAbsent(dir, k -> new ArrayList<>()).addAll(entries));
+            for (int i = 0; i < changed.size(); i += DIRS_PER_COMMAND) {
+                files.putAll(listFiles(device,
+                        packageName,
+                        changed.subList(i, Math.min(changed.size(), i + DIRS_PER_COMMAND)),
+                        false));
+            }
+        }
+        files.keySet().retainAll(dirs.keySet());
+        listings.put(key, new Listing(applicationDataPath, dirs, files));
+        final List<FileEntry> entries = files.values().stream().flatMap(List::stream).collect(Collectors.toList());
+        return new PackageScan(packageName,
+                applicationDataPath,
+                entries,
+                entries.stream()
+                        .filter(FileEntry::isSqlite)
+                        .collect(Collectors.toMap(FileEntry::getAbsolutePath, FileEntry::getHeader, (a, b) -> a)));
+    }
+
+    private <R> Future<R> submit(final JadbDevice device, final Callable<R> task) {
+        final Semaphore limit = deviceLimits.computeIfAbsent(device.getSerial(), k -> new Semaphore(threadsPerDevice));
+        return executor.submit(() -> {
+            limit.acquire();
+            try {
+                return task.call();
+            } finally {
+                limit.release();
+            }
+        });
+    }
+
+    private static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    @Value
+    public static class FileEntry {
+        String path;
+        String name;
+        long size;
+        long modified;
+        int mode;
+        @With
+        SqliteHeader header;
+
+        public String getAbsolutePath() {
+            return path + "/" + name;
+        }
+
+        public boolean isSqlite() {
+            return null != header;
+        }
+    }
+
+    /**
+     * Last scan of package, used to skip listing of unchanged directories.
+     */
+    @Value
+    private static class Listing {
+        String path;
+        Map<String, Long> dirs;
+        Map<String, List<FileEntry>> files;
+    }
+
+    @Value
+    public static class PackageScan {
+        String name;
+        String path;
+        List<FileEntry> files;
+        Map<String, SqliteHeader> databases;
+    }
+}
@@ -0,0 +1,5 @@
+delete from scan_devices;
+delete from scan_packages;
+delete from scan_files;
+delete from scan_databases;
+delete from scan_file_scope;
\ No newline at end of file
@@ -1 +1 @@
-DELETE from devices
\ No newline at end of file
+DELETE from devices where serial = ?
\ No newline at end of file
@@ -1 +1 @@
-DELETE from files
\ No newline at end of file
+DELETE from files where device = ?
\ No newline at end of file
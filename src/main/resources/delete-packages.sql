@@ -1 +1 @@
-DELETE from packages
\ No newline at end of file
+DELETE from packages where device = ?
\ No newline at end of file
@@ -0,0 +1 @@
+insert into scan_databases(device, package, absolute_path, page_size, page_count, freelist_count, schema_cookie, wal_mode, change_counter) values(?,?,?,?,?,?,?,?,?)
\ No newline at end of file
@@ -1 +1 @@
-insert into devices (name,serial) values(?,?)
\ No newline at end of file
+insert into scan_devices (name,serial) values(?,?)
\ No newline at end of file
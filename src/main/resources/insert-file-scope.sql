@@ -0,0 +1 @@
+insert into scan_file_scope(device, package) values(?,?)
\ No newline at end of file
@@ -1 +1 @@
-insert into files(device, package, path, name, absolute_path) values(?,?,?,?,?)
\ No newline at end of file
+insert into scan_files(device, package, path, name, absolute_path, size, mtime, mode, is_sqlite) values(?,?,?,?,?,?,?,?,?)
\ No newline at end of file
@@ -1 +1 @@
-insert into packages(device,name,path) values(?,?,?)
\ No newline at end of file
+insert into scan_packages(device,name,path) values(?,?,?)
\ No newline at end of file
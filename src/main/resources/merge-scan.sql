@@ -0,0 +1,33 @@
+delete from devices where serial in (select serial from scan_scope)
+    and not exists (select 1 from scan_devices s where s.serial = devices.serial and s.name = devices.name);
+insert into devices (name, serial) select distinct name, serial from scan_devices s
+    where not exists (select 1 from devices d where d.serial = s.serial and d.name = s.name);
+delete from packages where device in (select serial from scan_scope)
+    and not exists (select 1 from scan_packages s where s.device = packages.device and s.name = packages.name and s.path = packages.path);
+insert into packages (device, name, path) select distinct device, name, path from scan_packages s
+    where not exists (select 1 from packages p where p.device = s.device and p.name = s.name and p.path = s.path)
+    and exists (select 1 from devices d where d.serial = s.device);
+delete from files where exists (select 1 from scan_file_scope c where c.device = files.device and c.package = files.package)
+    and not exists (select 1 from scan_files s where s.device = files.device and s.package = files.package
+        and s.absolute_path = files.absolute_path and s.path = files.path and s.name = files.name
+        and s.size is files.size and s.mtime is files.mtime and s.mode is files.mode and s.is_sqlite = files.is_sqlite);
+insert into files (device, package, path, name, absolute_path, size, mtime, mode, is_sqlite)
+    select distinct device, package, path, name, absolute_path, size, mtime, mode, is_sqlite from scan_files s
+    where not exists (select 1 from files f where f.device = s.device and f.package = s.package
+        and f.absolute_path = s.absolute_path and f.path = s.path and f.name = s.name
+        and f.size is s.size and f.mtime is s.mtime and f.mode is s.mode and f.is_sqlite = s.is_sqlite)
+    and exists (select 1 from packages p where p.device = s.device and p.name = s.package);
+delete from databases where exists (select 1 from scan_file_scope c where c.device = databases.device and c.package = databases.package)
+    and not exists (select 1 from scan_databases s where s.device = databases.device and s.package = databases.package
+        and s.absolute_path = databases.absolute_path and s.page_size is databases.page_size
+        and s.page_count is databases.page_count and s.freelist_count is databases.freelist_count
+        and s.schema_cookie is databases.schema_cookie and s.wal_mode = databases.wal_mode
+        and s.change_counter is databases.change_counter);
+insert into databases (device, package, absolute_path, page_size, page_count, freelist_count, schema_cookie, wal_mode, change_counter)
+    select distinct device, package, absolute_path, page_size, page_count, freelist_count, schema_cookie, wal_mode, change_counter from scan_databases s
+    where not exists (select 1 from databases d where d.device = s.device and d.package = s.package
+        and d.absolute_path = s.absolute_path and d.page_size is s.page_size
+        and d.page_count is s.page_count and d.freelist_count is s.freelist_count
+        and d.schema_cookie is s.schema_cookie and d.wal_mode = s.wal_mode
+        and d.change_counter is s.change_counter)
+    and exists (select 1 from files f where f.device = s.device and f.package = s.package and f.absolute_path = s.absolute_path);
\ No newline at end of file
@@ -1,6 +1,13 @@
-drop table if exists devices;
-create table devices (id INTEGER PRIMARY KEY AUTOINCREMENT, name string NOT NULL, serial string NOT NULL);
-drop table if exists packages;
-create table packages (id INTEGER PRIMARY KEY AUTOINCREMENT, device string NOT NULL, name string NOT NULL, path string NOT NULL);
+drop view if exists database_files;
+drop table if exists databases;
 drop table if exists files;
-create table files (id INTEGER PRIMARY KEY AUTOINCREMENT, device string NOT NULL, package string NOT NULL, path string NOT NULL, name string NOT NULL, absolute_path string NOT NULL);
\ No newline at end of file
+drop table if exists packages;
+drop table if exists devices;
+create table devices (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, serial TEXT NOT NULL UNIQUE);
+create table packages (id INTEGER PRIMARY KEY AUTOINCREMENT, device TEXT NOT NULL REFERENCES devices (serial) ON DELETE CASCADE ON UPDATE CASCADE, name TEXT NOT NULL, path TEXT NOT NULL, UNIQUE (device, name));
+create table files (id INTEGER PRIMARY KEY AUTOINCREMENT, device TEXT NOT NULL, package TEXT NOT NULL, path TEXT NOT NULL, name TEXT NOT NULL, absolute_path TEXT NOT NULL, size INTEGER, mtime INTEGER, mode INTEGER, is_sqlite INTEGER NOT NULL DEFAULT 0, UNIQUE (device, package, absolute_path), FOREIGN KEY (device, package) REFERENCES packages (device, name) ON DELETE CASCADE ON UPDATE CASCADE);
+create index files_device_package_path on files (device, package, path, name);
+create index files_name on files (name);
+create index files_sqlite on files (device, package, size) where is_sqlite = 1;
+create table databases (id INTEGER PRIMARY KEY AUTOINCREMENT, device TEXT NOT NULL, package TEXT NOT NULL, absolute_path TEXT NOT NULL, page_size INTEGER, page_count INTEGER, freelist_count INTEGER, schema_cookie INTEGER, wal_mode INTEGER NOT NULL DEFAULT 0, change_counter INTEGER, UNIQUE (device, package, absolute_path), FOREIGN KEY (device, package, absolute_path) REFERENCES files (device, package, absolute_path) ON DELETE CASCADE ON UPDATE CASCADE);
+create view database_files as select * from files where is_sqlite = 1;
\ No newline at end of file
@@ -0,0 +1,7 @@
+create temp table scan_devices (name TEXT NOT NULL, serial TEXT NOT NULL);
+create temp table scan_packages (device TEXT NOT NULL, name TEXT NOT NULL, path TEXT NOT NULL);
+create temp table scan_files (device TEXT NOT NULL, package TEXT NOT NULL, path TEXT NOT NULL, name TEXT NOT NULL, absolute_path TEXT NOT NULL, size INTEGER, mtime INTEGER, mode INTEGER, is_sqlite INTEGER NOT NULL DEFAULT 0);
+create temp table scan_databases (device TEXT NOT NULL, package TEXT NOT NULL, absolute_path TEXT NOT NULL, page_size INTEGER, page_count INTEGER, freelist_count INTEGER, schema_cookie INTEGER, wal_mode INTEGER NOT NULL DEFAULT 0, change_counter INTEGER);
+create temp table scan_file_scope (device TEXT NOT NULL, package TEXT NOT NULL);
+create index temp.scan_files_device_package_path on scan_files (device, package, absolute_path);
+create temp view scan_scope as select serial from scan_devices union select device from scan_packages union select device from scan_files;
\ No newline at end of file
@@ -0,0 +1 @@
+select serial from devices union select device from packages union select device from files
\ No newline at end of file
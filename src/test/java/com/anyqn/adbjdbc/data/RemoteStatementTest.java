@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright 2021 Renat Eskenin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package com.anyqn.adbjdbc.data;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs remote execution mode against sqlite3 of host: the same command which
+ * is run on device is run by local shell. Skipped when sqlite3 3.22 or newer
+ * is absent, other binary is set by system property {@code sqlite3}.
+ */
+class RemoteStatementTest {
+    private static final String SQLITE3 = System.getProperty("sqlite3", "sqlite3");
+    private static final Pattern VERSION = Pattern.compile("^3\\.(\\d+)\\.");
+    private static final int ROWS = 100000;
+
+    private static File db;
+    private static Connection owner;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final List<String> queries = new ArrayList<>();
+    private RemoteSchema schema;
+
+    @BeforeAll
+    static void createDatabase() throws Exception {
+        Assumptions.assumeTrue(sqlite3Supported(), "sqlite3 3.22 or newer is not found");
+        db = File.createTempFile("remote-statement", ".db");
+        owner = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath());
+        try (Statement statement = owner.createStatement()) {
+            statement.executeUpdate("create table item (id integer primary key, name text, data blob)");
+            statement.executeUpdate("insert into item values (1, 'it''s', X''), (2, 'a' || char(10) || 'b', X'00ff'),"
+                    + " (3, 'c' || char(13, 10) || 'd', NULL)");
+        }
+    }
+
+    @AfterAll
+    static void deleteDatabase() throws SQLException {
+        if (null != owner) {
+            owner.close();
+        }
+        if (null != db) {
+            db.delete();
+        }
+    }
+
+    @BeforeEach
+    void createSchema() throws SQLException {
+        schema = new RemoteSchema(this::query);
+    }
+
+    @AfterEach
+    void closeSchema() throws SQLException {
+        schema.close();
+    }
+
+    private static boolean sqlite3Supported() {
+        try {
+            final Process process = new ProcessBuilder(SQLITE3, "-version").redirectErrorStream(true).start();
+            final String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+            final Matcher matcher = VERSION.matcher(output);
+            return process.waitFor() == 0 && matcher.find() && Integer.parseInt(matcher.group(1)) >= 22;
+        } catch (final IOException e) {
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Same query function as {@link RemoteDataConnection} uses, output is
+     * merged with errors like output of adb shell.
+     */
+    private InputStream query(final String sql) throws SQLException {
+        queries.add(sql);
+        final Process process;
+        try {
+            process = new ProcessBuilder("sh", "-c",
+                    RemoteDataConnection.queryScript(SQLITE3, db.getAbsolutePath(), sql))
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (final IOException e) {
+            throw new SQLException("Unable to run sqlite3", e);
+        }
+        return new FilterInputStream(process.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                final int c = super.read();
+                if (c != -1) {
+                    bytesRead.incrementAndGet();
+                }
+                return c;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int count = super.read(b, off, len);
+                if (count > 0) {
+                    bytesRead.addAndGet(count);
+                }
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                process.destroy();
+                super.close();
+            }
+        };
+    }
+
+    private Statement createStatement() {
+        return RemoteStatement.create(owner, this::query, schema::describe, 100);
+    }
+
+    private PreparedStatement prepareStatement(final String sql) {
+        return RemoteStatement.prepare(owner, this::query, schema::describe, sql, 100);
+    }
+
+    @Test
+    void readsValues() throws SQLException {
+        try (Statement statement = createStatement();
+                ResultSet resultSet = statement.executeQuery(
+                        "select id, name, data, id * 1.5 as real, -id as negative from item order by id")) {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            assertEquals(5, metaData.getColumnCount());
+            assertEquals("id", metaData.getColumnName(1));
+            assertEquals("negative", metaData.getColumnLabel(5));
+            assertEquals("INTEGER", metaData.getColumnTypeName(1));
+            assertEquals("TEXT", metaData.getColumnTypeName(2));
+            assertEquals("BLOB", metaData.getColumnTypeName(3));
+            assertEquals("REAL", metaData.getColumnTypeName(4));
+
+            assertTrue(resultSet.next());
+            assertEquals(1, resultSet.getInt("id"));
+            assertEquals("it's", resultSet.getString("name"));
+            assertArrayEquals(new byte[0], resultSet.getBytes("data"));
+            assertEquals(1.5, resultSet.getDouble("real"));
+            assertEquals(-1L, resultSet.getLong("negative"));
+
+            assertTrue(resultSet.next());
+            assertEquals("a\nb", resultSet.getString(2));
+            assertArrayEquals(new byte[] { 0, (byte) 0xff }, resultSet.getBytes(3));
+
+            assertTrue(resultSet.next());
+            assertEquals("c\r\nd", resultSet.getString(2));
+            assertNull(resultSet.getBytes(3));
+            assertTrue(resultSet.wasNull());
+
+            assertFalse(resultSet.next());
+        }
+    }
+
+    @Test
+    void readsLineBreaksInQuotes() throws SQLException {
+        try (Statement statement = createStatement();
+                ResultSet resultSet = statement.executeQuery(
+                        "select 'x''' || char(10) || ''',' || char(13) || 'y' as text, 'replace(' as name")) {
+            assertTrue(resultSet.next());
+            assertEquals("x'\n'," + '\r' + "y", resultSet.getString("text"));
+            assertEquals("replace(", resultSet.getString("name"));
+            assertFalse(resultSet.next());
+        }
+    }
+
+    @Test
+    void bindsParameters() throws SQLException {
+        try (PreparedStatement statement = prepareStatement(
+                "select '?' as mark, ? as first /* ? */, ?5 as fifth, ? as sixth, ?1 as again -- ?\n")) {
+            statement.setString(1, "it's");
+            statement.setLong(5, 5);
+            statement.setBytes(6, new byte[] { 1, 2 });
+            try (ResultSet resultSet = statement.executeQuery()) {
+                assertTrue(resultSet.next());
+                assertEquals("?", resultSet.getString("mark"));
+                assertEquals("it's", resultSet.getString("first"));
+                assertEquals(5, resultSet.getInt("fifth"));
+                assertArrayEquals(new byte[] { 1, 2 }, resultSet.getBytes("sixth"));
+                assertEquals("it's", resultSet.getString("again"));
+            }
+        }
+    }
+
+    @Test
+    void bindsNumberedParameters() throws SQLException {
+        try (PreparedStatement statement = prepareStatement("select name from item where id = ?2 and name <> ?1")) {
+            statement.setString(1, "none");
+            statement.setInt(2, 2);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                assertTrue(resultSet.next());
+                assertEquals("a\nb", resultSet.getString(1));
+                assertFalse(resultSet.next());
+            }
+        }
+    }
+
+    @Test
+    void failsOnMissingParameter() throws SQLException {
+        try (PreparedStatement statement = prepareStatement("select ?1, ?2")) {
+            statement.setInt(1, 1);
+            final SQLException e = assertThrows(SQLException.class, statement::executeQuery);
+            assertEquals("Parameter 2 is not set", e.getMessage());
+        }
+    }
+
+    @Test
+    void failsOnErrorOutput() throws SQLException {
+        try (Statement statement = createStatement()) {
+            final SQLException e = assertThrows(SQLException.class,
+                    () -> statement.executeQuery("select * from missing"));
+            assertTrue(e.getMessage().startsWith("Remote query failed: "), e.getMessage());
+            assertTrue(e.getMessage().contains("no such table: missing"), e.getMessage());
+        }
+    }
+
+    @Test
+    void failsOnWrite() throws SQLException {
+        try (Statement statement = createStatement()) {
+            assertThrows(SQLFeatureNotSupportedException.class,
+                    () -> statement.executeUpdate("delete from item"));
+            final SQLException e = assertThrows(SQLException.class,
+                    () -> statement.executeQuery("delete from item"));
+            assertTrue(e.getMessage().contains("readonly"), e.getMessage());
+        }
+    }
+
+    @Test
+    void describesEmptyResult() throws SQLException {
+        try (Statement statement = createStatement();
+                ResultSet resultSet = statement
+                        .executeQuery("select id, name as label from item where id < 0 -- no rows;\n;")) {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            assertEquals(2, metaData.getColumnCount());
+            assertEquals("id", metaData.getColumnName(1));
+            assertEquals("label", metaData.getColumnName(2));
+            assertFalse(resultSet.next());
+        }
+        // columns are taken from schema copy, query is not run again
+        assertEquals(1, queries.stream().filter(q -> q.contains("from item where id < 0")).count());
+    }
+
+    @Test
+    void describesEmptyPragmaResult() throws SQLException {
+        try (Statement statement = createStatement();
+                ResultSet resultSet = statement.executeQuery("pragma foreign_key_list(item)")) {
+            assertEquals("table", resultSet.getMetaData().getColumnName(3));
+            assertFalse(resultSet.next());
+        }
+    }
+
+    @Test
+    void servesMetaDataOfDeviceSchema() throws SQLException {
+        DatabaseMetaData metaData = schema.getMetaData(owner);
+        assertEquals(owner, metaData.getConnection());
+        try (ResultSet tables = metaData.getTables(null, null, "item", null)) {
+            assertTrue(tables.next());
+            assertEquals("TABLE", tables.getString("TABLE_TYPE"));
+        }
+        final List<String> columns = new ArrayList<>();
+        try (ResultSet resultSet = metaData.getColumns(null, null, "item", "%")) {
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("COLUMN_NAME"));
+            }
+        }
+        assertEquals(List.of("id", "name", "data"), columns);
+        try (ResultSet keys = metaData.getPrimaryKeys(null, null, "item")) {
+            assertTrue(keys.next());
+            assertEquals("id", keys.getString("COLUMN_NAME"));
+        }
+
+        try (Statement statement = owner.createStatement()) {
+            statement.executeUpdate("create view item_name as select name from item");
+        }
+        try {
+            metaData = schema.getMetaData(owner);
+            try (ResultSet tables = metaData.getTables(null, null, "item_name", null)) {
+                assertTrue(tables.next());
+                assertEquals("VIEW", tables.getString("TABLE_TYPE"));
+            }
+        } finally {
+            try (Statement statement = owner.createStatement()) {
+                statement.executeUpdate("drop view item_name");
+            }
+        }
+    }
+
+    @Test
+    void readsAheadFetchSizeRows() throws SQLException {
+        try (Statement statement = createStatement()) {
+            statement.setFetchSize(10);
+            try (ResultSet resultSet = statement.executeQuery(String.format(
+                    "with recursive n(i) as (select 1 union all select i + 1 from n limit %d)"
+                            + " select i, 'row ' || i as name from n",
+                    ROWS))) {
+                assertEquals(10, resultSet.getFetchSize());
+                for (int i = 1; i <= 20; i++) {
+                    assertTrue(resultSet.next());
+                    assertEquals(i, resultSet.getInt(1));
+                }
+                // output of all rows is over 1 MB, only buffered part of it is read
+                assertTrue(bytesRead.get() < 65536, String.valueOf(bytesRead.get()));
+                int count = 20;
+                String name = null;
+                while (resultSet.next()) {
+                    count++;
+                    name = resultSet.getString("name");
+                }
+                assertEquals(ROWS, count);
+                assertEquals("row " + ROWS, name);
+            }
+        }
+    }
+
+    @Test
+    void limitsMaxRows() throws SQLException {
+        try (Statement statement = createStatement()) {
+            statement.setFetchSize(10);
+            statement.setMaxRows(25);
+            try (ResultSet resultSet = statement
+                    .executeQuery("with recursive n(i) as (select 1 union all select i + 1 from n) select i from n")) {
+                int count = 0;
+                while (resultSet.next()) {
+                    count++;
+                    assertEquals(count, resultSet.getInt(1));
+                }
+                assertEquals(25, count);
+            }
+        }
+    }
+}